@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[initialPendingCapacity];
 	}
 
 	/**
@@ -101,6 +99,37 @@ public final class Interrupt {
 		return oldStatus;
 	}
 
+	/**
+	 * Advance the simulated time to the next pending interrupt, and invoke the
+	 * interrupt handlers that are then due. This is meant to be called when no
+	 * thread is ready to run, so that nothing can happen until a device
+	 * interrupts; the time skipped is charged as kernel time. Interrupts must
+	 * be disabled.
+	 * 
+	 * @return <tt>true</tt> if there was a pending interrupt to advance to.
+	 */
+	public boolean idle() {
+		Lib.assertTrue(disabled());
+
+		if (numPending == 0)
+			return false;
+
+		Stats stats = privilege.stats;
+
+		long time = pending[0].time;
+		if (time > stats.totalTicks) {
+			if (Lib.test(dbgInt))
+				System.out.println("== Idle until " + time + " ==");
+
+			stats.kernelTicks += time - stats.totalTicks;
+			stats.totalTicks = time;
+		}
+
+		checkIfDue();
+
+		return true;
+	}
+
 	/**
 	 * Tests whether interrupts are enabled.
 	 * 
@@ -123,12 +152,13 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocatePending(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		addPending(toOccur);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +181,29 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long userTicksBeforeDue() {
+		// tick one at a time if every tick is being traced
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		long time = pending[0].time;
+
+		return Math.max(0, (time - privilege.stats.totalTicks - 1)
+				/ Stats.UserTick);
+	}
+
+	private void advanceUserTicks(long count) {
+		Stats stats = privilege.stats;
+
+		stats.userTicks += count * Stats.UserTick;
+		stats.totalTicks += count * Stats.UserTick;
+
+		Lib.assertTrue(numPending == 0 || pending[0].time > stats.totalTicks);
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,39 +212,132 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		if (numPending == 0)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending[0].time > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pending[0].time <= time) {
+			PendingInterrupt next = removeFirstPending();
 
 			Lib.assertTrue(next.time <= time);
 
+			// the record can be reused by the handler itself
+			String type = next.type;
+			Runnable handler = next.handler;
+			freePending(next);
+
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	/**
+	 * Return a pending interrupt record, reusing a free one if possible.
+	 */
+	private PendingInterrupt allocatePending(long time, String type,
+			Runnable handler) {
+		PendingInterrupt toOccur = freePending;
+		if (toOccur != null)
+			freePending = toOccur.nextFree;
+		else
+			toOccur = new PendingInterrupt();
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+		toOccur.nextFree = null;
+
+		return toOccur;
+	}
+
+	/**
+	 * Return a record that is no longer pending to the free list.
+	 */
+	private void freePending(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.nextFree = freePending;
+		freePending = toOccur;
+	}
+
+	/**
+	 * Add a record to the heap of pending interrupts.
+	 */
+	private void addPending(PendingInterrupt toOccur) {
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, pending.length * 2);
+
+		// sift up
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (pending[parent].compareTo(toOccur) <= 0)
+				break;
+
+			pending[i] = pending[parent];
+			i = parent;
+		}
+
+		pending[i] = toOccur;
+	}
+
+	/**
+	 * Remove and return the earliest pending interrupt from the heap.
+	 */
+	private PendingInterrupt removeFirstPending() {
+		PendingInterrupt first = pending[0];
+
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+
+		if (numPending > 0) {
+			// sift down
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= numPending)
+					break;
+
+				if (child + 1 < numPending
+						&& pending[child + 1].compareTo(pending[child]) < 0)
+					child++;
+
+				if (last.compareTo(pending[child]) <= 0)
+					break;
+
+				pending[i] = pending[child];
+				i = child;
+			}
+
+			pending[i] = last;
+		}
+
+		return first;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < sorted.length; i++) {
+			PendingInterrupt toOccur = sorted[i];
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,16 +345,8 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+	private class PendingInterrupt implements Comparable<PendingInterrupt> {
+		public int compareTo(PendingInterrupt toOccur) {
 
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
@@ -230,6 +368,9 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** The next record on the free list, if this one is free. */
+		PendingInterrupt nextFree;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +379,18 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * A binary heap of pending interrupts, ordered by time and then by the
+	 * order in which they were scheduled.
+	 */
+	private PendingInterrupt[] pending;
+
+	private int numPending = 0;
+
+	/** Records of interrupts that already occurred, for reuse. */
+	private PendingInterrupt freePending = null;
+
+	private static final int initialPendingCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +402,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long userTicksBeforeDue() {
+			return Interrupt.this.userTicksBeforeDue();
+		}
+
+		public void advanceUserTicks(long count) {
+			Interrupt.this.advanceUserTicks(count);
+		}
 	}
 }
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.ArrayList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -66,10 +67,13 @@ public final class Machine {
 
 	/**
 	 * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
-	 * non-Nachos threads a chance to run.
+	 * non-Nachos threads a chance to run. Virtual-thread TCBs share a carrier
+	 * thread that non-Nachos threads never run on, so yielding it gains them
+	 * nothing and only costs an unmount.
 	 */
 	public static void yield() {
-		Thread.yield();
+		if (!TCB.usingVirtualThreads())
+			Thread.yield();
 	}
 
 	/**
@@ -93,14 +97,31 @@ public final class Machine {
 	}
 
 	/**
-	 * Print stats, and terminate Nachos.
+	 * Run the halt handlers, print stats, and terminate Nachos.
 	 */
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
+
+		for (int i = 0; i < haltHandlers.size(); i++)
+			haltHandlers.get(i).run();
+
 		stats.print();
 		terminate();
 	}
 
+	/**
+	 * Register a handler for <tt>halt()</tt> to run before it prints stats,
+	 * so that kernel code can report its own statistics. Handlers run in the
+	 * order they were added.
+	 * 
+	 * @param handler the handler to add.
+	 */
+	public static void addHaltHandler(Runnable handler) {
+		Lib.assertTrue(handler != null);
+
+		haltHandlers.add(handler);
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -433,6 +454,8 @@ public final class Machine {
 
 	private static Stats stats = new Stats();
 
+	private static ArrayList<Runnable> haltHandlers = new ArrayList<Runnable>();
+
 	private static int numPhysPages = -1;
 
 	private static long randomSeed = 0;
@@ -44,6 +44,24 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new DecodedInstruction[numPhysPages][];
+
+		traceProcessor = Lib.test(dbgProcessor);
+		batchTicks = Config.getBoolean("Processor.batchTicks", true);
+
+		// the block engine does not print disassembly, so fall back to the
+		// interpreter whenever a trace was asked for
+		useBlockEngine = Config.getString("Processor.engine", "interpreter")
+				.equals("jit")
+				&& !Lib.test(dbgProcessor)
+				&& !Lib.test(dbgDisassemble)
+				&& !Lib.test(dbgFullDisassemble);
+
+		if (useBlockEngine) {
+			blockCache = new TranslatedBlock[numPhysPages][];
+			blockHeat = new int[numPhysPages][];
+			blockWords = new boolean[numPhysPages][];
+		}
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -89,6 +107,9 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		if (useBlockEngine)
+			runBlocks();
+
 		Instruction inst = new Instruction();
 
 		while (true) {
@@ -99,7 +120,7 @@ public final class Processor {
 				e.handle();
 			}
 
-			privilege.interrupt.tick(false);
+			tick();
 		}
 	}
 
@@ -173,6 +194,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushTranslations();
 	}
 
 	/**
@@ -214,6 +236,7 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		flushTranslations();
 	}
 
 	/**
@@ -276,21 +299,69 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Advance the simulated time by one user tick.
+	 * 
+	 * <p>
+	 * When batching, the interrupt controller is asked how many ticks can
+	 * pass before the next pending interrupt is due, and that many ticks are
+	 * only counted here. They are handed to the interrupt controller at once
+	 * right before the tick that makes the interrupt due, or before an
+	 * exception handler runs, so timing is the same as ticking after every
+	 * instruction.
+	 */
+	private void tick() {
+		if (ticksBeforeDue > 0) {
+			ticksBeforeDue--;
+			ticksOwed++;
+			return;
+		}
+
+		settleTicks();
+		privilege.interrupt.tick(false);
+
+		if (batchTicks)
+			ticksBeforeDue = privilege.interrupt.userTicksBeforeDue();
+	}
+
+	/**
+	 * Hand the ticks counted by <tt>tick()</tt> to the interrupt controller,
+	 * and stop batching until the next real tick, since kernel code is about
+	 * to run and may schedule new interrupts.
+	 */
+	private void settleTicks() {
+		if (ticksOwed > 0) {
+			privilege.interrupt.advanceUserTicks(ticksOwed);
+			ticksOwed = 0;
+		}
+
+		ticksBeforeDue = 0;
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
 	 * make sure a read-only page is not being written, make sure the resulting
 	 * physical page is valid, and then return the resulting physical address.
 	 * 
+	 * <p>
+	 * The last successful translation of each kind of access is remembered,
+	 * and reused without a lookup while the virtual page stays the same.
+	 * Remembered translations are dropped whenever the kernel could change
+	 * them, so the used and dirty bits they set are still set.
+	 * 
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
-	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param access the kind of memory reference (one of
+	 * <tt>accessFetch</tt>, <tt>accessRead</tt> or <tt>accessWrite</tt>).
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
+	private int translate(int vaddr, int size, int access)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		boolean writing = (access == accessWrite);
+
+		if (traceProcessor)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
@@ -304,6 +375,14 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		// reuse the last translation of this kind if it was for the same page
+		if (cachedVPN[access] == vpn && !traceProcessor) {
+			privilege.stats.numTranslationHits++;
+			return cachedPageBase[access] + offset;
+		}
+
+		privilege.stats.numTranslationMisses++;
+
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -352,11 +431,22 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		cachedVPN[access] = vpn;
+		cachedPageBase[access] = ppn * pageSize;
+
+		if (traceProcessor)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Forget the translations remembered by <tt>translate()</tt>.
+	 */
+	private void flushTranslations() {
+		for (int i = 0; i < cachedVPN.length; i++)
+			cachedVPN[i] = -1;
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -373,8 +463,8 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = Lib.bytesToInt(mainMemory,
+				translate(vaddr, size, accessRead), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -400,7 +490,13 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, accessWrite);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		if (useBlockEngine && blockWords[paddr / pageSize] != null
+				&& blockWords[paddr / pageSize][(paddr % pageSize) / 4])
+			dropBlocks(paddr / pageSize);
 	}
 
 	/**
@@ -567,6 +663,68 @@ public final class Processor {
 
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
+
+	/** The kinds of memory reference, as passed to <tt>translate()</tt>. */
+	private static final int accessFetch = 0, accessRead = 1, accessWrite = 2;
+
+	/** The virtual page of the last translation of each kind, or -1. */
+	private int[] cachedVPN = { -1, -1, -1 };
+
+	/** The physical address of that page. */
+	private int[] cachedPageBase = new int[3];
+
+	/** <tt>true</tt> if translations should be traced. */
+	private boolean traceProcessor;
+
+	/**
+	 * <tt>true</tt> if user ticks are handed to the interrupt controller in
+	 * batches.
+	 */
+	private boolean batchTicks;
+
+	/** The number of user ticks that can still be counted before a real tick. */
+	private long ticksBeforeDue = 0;
+
+	/** The number of user ticks counted but not yet handed over. */
+	private long ticksOwed = 0;
+
+	/** <tt>true</tt> if user code is run by the block engine. */
+	private boolean useBlockEngine;
+
+	/** Translated blocks, indexed by physical page and word offset. */
+	private TranslatedBlock[][] blockCache;
+
+	/** Execution counts of not yet translated block entry points. */
+	private int[][] blockHeat;
+
+	/** Marks the words of each physical page covered by translated blocks. */
+	private boolean[][] blockWords;
+
+	/**
+	 * Bumped whenever memory may have been changed behind the processor's
+	 * back, by an exception handler or another thread. Translated blocks
+	 * re-check their code words after it moves.
+	 */
+	private int codeEpoch = 0;
+
+	/**
+	 * Bumped whenever kernel code runs, the code epoch moves, or blocks are
+	 * dropped. Control can only pass from one block to the next without a
+	 * translation while this stays the same.
+	 */
+	private int controlEpoch = 0;
+
+	/** Instruction used to run code that has no specialized block op. */
+	private Instruction blockInstruction;
+
+	/** Executions of an entry point before a block is translated for it. */
+	private static final int hotBlockThreshold = 16;
+
+	/** The longest block that will be translated, in instructions. */
+	private static final int maxBlockLength = 64;
+
+	/** Decoded instructions, indexed by physical page and word offset. */
+	private DecodedInstruction[][] decodeCache;
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,6 +737,16 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+
+			// an interrupt handler is about to run kernel code
+			controlEpoch++;
+			flushTranslations();
+		}
+
+		public void contextSwitch() {
+			// another thread may change memory before this one runs again
+			invalidateCode();
+			flushTranslations();
 		}
 	}
 
@@ -597,6 +765,10 @@ public final class Processor {
 		}
 
 		public void handle() {
+			settleTicks();
+			invalidateCode();
+			flushTranslations();
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -621,29 +793,51 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
-	private class Instruction {
-		public void run() throws MipsException {
-			// hopefully this looks familiar to 152 students?
-			fetch();
-			decode();
-			execute();
-			writeBack();
-		}
+	/**
+	 * Return the decoded form of the instruction word <i>value</i>, fetched
+	 * from physical address <i>paddr</i>. Decoded instructions are cached per
+	 * physical page, and each cached entry remembers the raw word it was
+	 * decoded from, so a page rewritten by a store, by
+	 * <tt>CoffSection.loadPage()</tt> or by swap-in is simply decoded again
+	 * the next time it is executed.
+	 * 
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the raw instruction word.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction lookupDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+		DecodedInstruction[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodeCache[ppn] = page;
 		}
 
-		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+		int index = (paddr % pageSize) / 4;
 
-			value = readMem(registers[regPC], 4);
+		DecodedInstruction decoded = page[index];
+		if (decoded == null) {
+			decoded = new DecodedInstruction();
+			page[index] = decoded;
+			decoded.decode(value);
+		}
+		else if (decoded.value != value) {
+			decoded.decode(value);
 		}
 
-		private void decode() {
+		return decoded;
+	}
+
+	/**
+	 * The register-independent fields of an instruction word, extracted once
+	 * and then reused every time the same word is executed from the same
+	 * physical address.
+	 */
+	private static class DecodedInstruction {
+		void decode(int value) {
+			this.value = value;
+
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -671,24 +865,18 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
-			if (test(Mips.SIZEB))
+			if (Lib.test(Mips.SIZEB, flags))
 				size = 1;
-			else if (test(Mips.SIZEH))
+			else if (Lib.test(Mips.SIZEH, flags))
 				size = 2;
-			else if (test(Mips.SIZEW))
+			else if (Lib.test(Mips.SIZEW, flags))
 				size = 4;
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
-			if (test(Mips.DSTRA))
+			if (Lib.test(Mips.DSTRA, flags))
 				dstReg = regRA;
 			else if (format == Mips.IFMT)
 				dstReg = rt;
@@ -696,6 +884,686 @@ public final class Processor {
 				dstReg = rd;
 			else
 				dstReg = -1;
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg;
+	}
+
+	/**
+	 * Run user code with the block engine. Never returns.
+	 * 
+	 * <p>
+	 * Straight-line runs of code that have been entered often enough are
+	 * translated into chains of specialized <tt>BlockOp</tt>s, and control
+	 * passes from one block to the next without translating the PC as long
+	 * as it stays on the same page and no kernel code runs in between.
+	 * Everything else is interpreted one instruction at a time, exactly like
+	 * <tt>run()</tt>. Each instruction still ticks the interrupt controller
+	 * once, so timing is the same as with the interpreter.
+	 */
+	private void runBlocks() {
+		blockInstruction = new Instruction();
+
+		while (true) {
+			try {
+				runBlockChain();
+			}
+			catch (MipsException e) {
+				e.handle();
+				tick();
+			}
+		}
+	}
+
+	/**
+	 * Run blocks starting at the current PC until control leaves the current
+	 * virtual page, or until kernel code runs.
+	 */
+	private void runBlockChain() throws MipsException {
+		int pc = registers[regPC];
+		int paddr = translate(pc, 4, accessFetch);
+		int epoch = controlEpoch;
+
+		while (true) {
+			TranslatedBlock block = null;
+
+			// a block can only be entered outside of a branch delay slot
+			if (registers[regNextPC] == pc + 4)
+				block = findBlock(paddr);
+
+			if (block != null) {
+				block.run();
+			}
+			else {
+				blockInstruction.run(paddr);
+				tick();
+			}
+
+			if (controlEpoch != epoch)
+				return;
+
+			// chain to the next block if its translation is known
+			int nextPC = registers[regPC];
+			if ((nextPC & 0x3) != 0
+					|| pageFromAddress(nextPC) != pageFromAddress(pc))
+				return;
+
+			paddr = paddr - offsetFromAddress(pc) + offsetFromAddress(nextPC);
+			pc = nextPC;
+		}
+	}
+
+	/**
+	 * Return the translated block starting at physical address <i>paddr</i>,
+	 * translating it first if the address has become hot. Returns
+	 * <tt>null</tt> if the address should be interpreted instead.
+	 */
+	private TranslatedBlock findBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) / 4;
+
+		TranslatedBlock[] blocks = blockCache[ppn];
+		if (blocks != null) {
+			TranslatedBlock block = blocks[index];
+			if (block != null) {
+				if (block.validEpoch == codeEpoch || block.validate())
+					return block;
+
+				// the code under this block changed
+				blocks[index] = null;
+				blockHeat[ppn][index] = 0;
+			}
+		}
+
+		int[] heat = blockHeat[ppn];
+		if (heat == null) {
+			heat = new int[pageSize / 4];
+			blockHeat[ppn] = heat;
+		}
+
+		if (++heat[index] < hotBlockThreshold)
+			return null;
+
+		TranslatedBlock block = translateBlock(paddr);
+		if (block == null)
+			return null;
+
+		if (blocks == null) {
+			blocks = new TranslatedBlock[pageSize / 4];
+			blockCache[ppn] = blocks;
+		}
+
+		blocks[index] = block;
+
+		boolean[] words = blockWords[ppn];
+		if (words == null) {
+			words = new boolean[pageSize / 4];
+			blockWords[ppn] = words;
+		}
+
+		for (int i = 0; i < block.words.length; i++)
+			words[index + i] = true;
+
+		return block;
+	}
+
+	/**
+	 * Translate the straight-line code starting at physical address
+	 * <i>paddr</i>. The block ends after the delay slot of the first branch,
+	 * after a syscall or an invalid instruction, or at the end of the page.
+	 */
+	private TranslatedBlock translateBlock(int paddr) {
+		int pageEnd = (paddr / pageSize + 1) * pageSize;
+
+		BlockOp[] ops = new BlockOp[maxBlockLength];
+		int length = 0;
+		int end = -1;
+
+		for (int addr = paddr; addr < pageEnd && length < maxBlockLength;
+				addr += 4) {
+			int value = Lib.bytesToInt(mainMemory, addr, 4);
+			DecodedInstruction decoded = lookupDecoded(addr, value);
+
+			if (Lib.test(Mips.BRANCH, decoded.flags)) {
+				// keep the branch and its delay slot together, and leave a
+				// branch in a delay slot to the interpreter
+				if (end != -1 || addr + 4 >= pageEnd
+						|| length + 2 > maxBlockLength)
+					break;
+
+				ops[length++] = compileOp(decoded, addr);
+				end = length + 1;
+				continue;
+			}
+
+			ops[length++] = compileOp(decoded, addr);
+
+			if (length == end)
+				break;
+
+			int operation = decoded.operation;
+			if (operation == Mips.SYSCALL || operation == Mips.INVALID
+					|| operation == Mips.UNIMPL)
+				break;
+		}
+
+		if (length == 0)
+			return null;
+
+		TranslatedBlock block = new TranslatedBlock(paddr, ops, length);
+		block.validEpoch = codeEpoch;
+
+		return block;
+	}
+
+	/**
+	 * Throw away the translated blocks of physical page <i>ppn</i>, which was
+	 * just stored to. This also happens when a page that used to hold code is
+	 * reused for data.
+	 */
+	private void dropBlocks(int ppn) {
+		blockCache[ppn] = null;
+		blockWords[ppn] = null;
+		blockHeat[ppn] = null;
+
+		// the running block may be one of them
+		controlEpoch++;
+	}
+
+	/**
+	 * Note that memory may have changed under the translated blocks.
+	 */
+	private void invalidateCode() {
+		codeEpoch++;
+		controlEpoch++;
+	}
+
+	/**
+	 * Complete any pending delayed load, write <i>value</i> to register
+	 * <i>dstReg</i>, and advance the PC to the next sequential instruction.
+	 */
+	private void retire(int dstReg, int value) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+
+		int nextPC = registers[regNextPC];
+		registers[regPC] = nextPC;
+		registers[regNextPC] = nextPC + 4;
+	}
+
+	/**
+	 * Complete any pending delayed load, start a new one into register
+	 * <i>target</i>, and advance the PC to the next sequential instruction.
+	 */
+	private void retireLoad(int target, int value) {
+		delayedLoad(target, value, 0xFFFFFFFF);
+
+		int nextPC = registers[regNextPC];
+		registers[regPC] = nextPC;
+		registers[regNextPC] = nextPC + 4;
+	}
+
+	/**
+	 * Complete any pending delayed load and transfer control, after the
+	 * delay slot, to <i>target</i> if <i>taken</i> is <tt>true</tt>.
+	 */
+	private void retireBranch(boolean taken, int target) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		int nextPC = registers[regNextPC];
+		registers[regPC] = nextPC;
+		registers[regNextPC] = taken ? target : nextPC + 4;
+	}
+
+	/**
+	 * Return a specialized op for the decoded instruction at physical address
+	 * <i>paddr</i>, or one that interprets it if there is no specialization.
+	 * Each op has the same effect on registers, memory, the delayed load and
+	 * the PC as <tt>Instruction.run()</tt>, minus the fetch.
+	 */
+	private BlockOp compileOp(DecodedInstruction decoded, final int paddr) {
+		final int rs = decoded.rs, rt = decoded.rt, rd = decoded.rd;
+		final int sh = decoded.sh, imm = decoded.imm, size = decoded.size;
+		final int flags = decoded.flags;
+
+		boolean srcImm = Lib.test(Mips.SRC2IMM, flags);
+		boolean unsigned = Lib.test(Mips.UNSIGNED, flags);
+
+		switch (decoded.operation) {
+		case Mips.ADD:
+			if (Lib.test(Mips.OVERFLOW, flags))
+				break;
+
+			if (srcImm) {
+				return new BlockOp() {
+					public void run() {
+						retire(rt, registers[rs] + imm);
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[rs] + registers[rt]);
+				}
+			};
+
+		case Mips.SUB:
+			if (Lib.test(Mips.OVERFLOW, flags))
+				break;
+
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[rs] - registers[rt]);
+				}
+			};
+
+		case Mips.SLL:
+			if (Lib.test(Mips.SRC1SH, flags)) {
+				return new BlockOp() {
+					public void run() {
+						retire(rd, registers[rt] << sh);
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[rt] << (registers[rs] & 0x1F));
+				}
+			};
+
+		case Mips.SRA:
+			if (Lib.test(Mips.SRC1SH, flags)) {
+				return new BlockOp() {
+					public void run() {
+						retire(rd, registers[rt] >> sh);
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[rt] >> (registers[rs] & 0x1F));
+				}
+			};
+
+		case Mips.SRL:
+			if (Lib.test(Mips.SRC1SH, flags)) {
+				return new BlockOp() {
+					public void run() {
+						retire(rd, (int) ((long) registers[rt] >>> sh));
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd,
+							(int) ((long) registers[rt] >>> (registers[rs] & 0x1F)));
+				}
+			};
+
+		case Mips.LUI:
+			final int upper = (imm & 0xFFFF) << 16;
+			return new BlockOp() {
+				public void run() {
+					retire(rt, upper);
+				}
+			};
+
+		case Mips.AND:
+			if (srcImm) {
+				final int uimm = imm & 0xFFFF;
+				return new BlockOp() {
+					public void run() {
+						retire(rt, registers[rs] & uimm);
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[rs] & registers[rt]);
+				}
+			};
+
+		case Mips.OR:
+			if (srcImm) {
+				final int uimm = imm & 0xFFFF;
+				return new BlockOp() {
+					public void run() {
+						retire(rt, registers[rs] | uimm);
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[rs] | registers[rt]);
+				}
+			};
+
+		case Mips.XOR:
+			if (srcImm) {
+				final int uimm = imm & 0xFFFF;
+				return new BlockOp() {
+					public void run() {
+						retire(rt, registers[rs] ^ uimm);
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[rs] ^ registers[rt]);
+				}
+			};
+
+		case Mips.NOR:
+			return new BlockOp() {
+				public void run() {
+					retire(rd, ~(registers[rs] | registers[rt]));
+				}
+			};
+
+		case Mips.SLT:
+			if (srcImm && unsigned) {
+				final long uimm = imm & 0xFFFF;
+				return new BlockOp() {
+					public void run() {
+						long src1 = registers[rs] & 0xFFFFFFFFL;
+						retire(rt, (src1 < uimm) ? 1 : 0);
+					}
+				};
+			}
+			else if (srcImm) {
+				return new BlockOp() {
+					public void run() {
+						retire(rt, (registers[rs] < imm) ? 1 : 0);
+					}
+				};
+			}
+			else if (unsigned) {
+				return new BlockOp() {
+					public void run() {
+						long src1 = registers[rs] & 0xFFFFFFFFL;
+						long src2 = registers[rt] & 0xFFFFFFFFL;
+						retire(rd, (src1 < src2) ? 1 : 0);
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					retire(rd, (registers[rs] < registers[rt]) ? 1 : 0);
+				}
+			};
+
+		case Mips.MFLO:
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[regLo]);
+				}
+			};
+
+		case Mips.MFHI:
+			return new BlockOp() {
+				public void run() {
+					retire(rd, registers[regHi]);
+				}
+			};
+
+		case Mips.BEQ:
+			return new BlockOp() {
+				public void run() {
+					retireBranch(registers[rs] == registers[rt],
+							registers[regNextPC] + (imm << 2));
+				}
+			};
+
+		case Mips.BNE:
+			return new BlockOp() {
+				public void run() {
+					retireBranch(registers[rs] != registers[rt],
+							registers[regNextPC] + (imm << 2));
+				}
+			};
+
+		case Mips.BLEZ:
+			return new BlockOp() {
+				public void run() {
+					retireBranch(registers[rs] <= 0,
+							registers[regNextPC] + (imm << 2));
+				}
+			};
+
+		case Mips.BGTZ:
+			return new BlockOp() {
+				public void run() {
+					retireBranch(registers[rs] > 0,
+							registers[regNextPC] + (imm << 2));
+				}
+			};
+
+		case Mips.BLTZ:
+			if (Lib.test(Mips.LINK, flags))
+				break;
+
+			return new BlockOp() {
+				public void run() {
+					retireBranch(registers[rs] < 0,
+							registers[regNextPC] + (imm << 2));
+				}
+			};
+
+		case Mips.BGEZ:
+			if (Lib.test(Mips.LINK, flags))
+				break;
+
+			return new BlockOp() {
+				public void run() {
+					retireBranch(registers[rs] >= 0,
+							registers[regNextPC] + (imm << 2));
+				}
+			};
+
+		case Mips.JUMP:
+			final int dstReg = decoded.dstReg;
+			final boolean link = Lib.test(Mips.LINK, flags);
+
+			if (decoded.format == Mips.JFMT) {
+				final int target = decoded.target << 2;
+				return new BlockOp() {
+					public void run() {
+						int nextPC = registers[regNextPC];
+						retireBranch(true, (nextPC & 0xF0000000) | target);
+						if (link)
+							registers[regRA] = nextPC + 4;
+					}
+				};
+			}
+			return new BlockOp() {
+				public void run() {
+					int nextPC = registers[regNextPC];
+					retireBranch(true, registers[rs]);
+					if (link && dstReg != 0)
+						registers[dstReg] = nextPC + 4;
+				}
+			};
+
+		case Mips.LOAD:
+			if (unsigned) {
+				// the interpreter zero-extends the offset of lbu and lhu too
+				final int uimm = imm & 0xFFFF;
+				return new BlockOp() {
+					public void run() throws MipsException {
+						int value = Lib.bytesToInt(mainMemory, translate(
+								registers[rs] + uimm, size, accessRead), size);
+						retireLoad(rt, value);
+					}
+				};
+			}
+			final int bits = size * 8;
+			return new BlockOp() {
+				public void run() throws MipsException {
+					int value = Lib.bytesToInt(mainMemory, translate(
+							registers[rs] + imm, size, accessRead), size);
+					retireLoad(rt, Lib.extend(value, 0, bits));
+				}
+			};
+
+		case Mips.STORE:
+			return new BlockOp() {
+				public void run() throws MipsException {
+					writeMem(registers[rs] + imm, size, registers[rt]);
+					retire(0, 0);
+				}
+			};
+		}
+
+		return new BlockOp() {
+			public void run() throws MipsException {
+				blockInstruction.run(paddr);
+			}
+		};
+	}
+
+	/**
+	 * A straight-line run of translated instructions, starting at a fixed
+	 * physical address.
+	 */
+	private class TranslatedBlock {
+		TranslatedBlock(int paddr, BlockOp[] ops, int length) {
+			this.paddr = paddr;
+			this.ops = new BlockOp[length];
+			this.words = new int[length];
+
+			for (int i = 0; i < length; i++) {
+				this.ops[i] = ops[i];
+				words[i] = Lib.bytesToInt(mainMemory, paddr + i * 4, 4);
+			}
+		}
+
+		/**
+		 * Check that memory still holds the code this block was translated
+		 * from.
+		 */
+		boolean validate() {
+			for (int i = 0; i < words.length; i++) {
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4, 4) != words[i])
+					return false;
+			}
+
+			validEpoch = codeEpoch;
+			return true;
+		}
+
+		/**
+		 * Run the block, ticking once per instruction, and stop early if an
+		 * interrupt handler ran or the code was stored to.
+		 */
+		void run() throws MipsException {
+			int epoch = controlEpoch;
+
+			for (int i = 0; i < ops.length; i++) {
+				ops[i].run();
+				tick();
+
+				if (controlEpoch != epoch)
+					return;
+			}
+		}
+
+		int paddr;
+
+		BlockOp[] ops;
+
+		int[] words;
+
+		int validEpoch;
+	}
+
+	/**
+	 * One translated instruction.
+	 */
+	private abstract class BlockOp {
+		public abstract void run() throws MipsException;
+	}
+
+	private class Instruction {
+		public void run() throws MipsException {
+			// hopefully this looks familiar to 152 students?
+			fetch();
+			decode();
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Run the instruction at physical address <i>paddr</i>, which the
+		 * caller has already obtained by translating the current PC.
+		 */
+		public void run(int paddr) throws MipsException {
+			this.paddr = paddr;
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+			decode();
+			execute();
+			writeBack();
+		}
+
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		private void fetch() throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			int vaddr = registers[regPC];
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+						+ ", size=4");
+
+			paddr = translate(vaddr, 4, accessFetch);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
+		}
+
+		private void decode() {
+			DecodedInstruction decoded = lookupDecoded(paddr, value);
+
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
+
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
 
 			// get jtarget
 			if (format == Mips.RFMT)
@@ -1067,7 +1935,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -20,6 +20,7 @@ public final class Stats {
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
 				+ kernelTicks + ", user " + userTicks);
+		System.out.println("Threads: context switches " + numContextSwitches);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
@@ -28,6 +29,12 @@ public final class Stats {
 				+ ", TLB misses " + numTLBMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+
+		long numTranslations = numTranslationHits + numTranslationMisses;
+		System.out.println("Translation cache: hits " + numTranslationHits
+				+ ", misses " + numTranslationMisses + ", hit rate "
+				+ (numTranslationHits * 100 / Math.max(numTranslations, 1))
+				+ "%");
 	}
 
 	/**
@@ -45,6 +52,9 @@ public final class Stats {
 	 */
 	public long userTicks = 0;
 
+	/** The total number of switches from one thread's TCB to another's. */
+	public long numContextSwitches = 0;
+
 	/** The total number of sectors Nachos has read from the simulated disk. */
 	public int numDiskReads = 0;
 
@@ -63,6 +73,18 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/**
+	 * The total number of address translations answered by the processor's
+	 * last-translation cache.
+	 */
+	public long numTranslationHits = 0;
+
+	/**
+	 * The total number of address translations that needed a page table or
+	 * TLB lookup.
+	 */
+	public long numTranslationMisses = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
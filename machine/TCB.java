@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +23,15 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * By default every TCB is backed by a platform thread, and control is handed
+ * from one TCB to the next through the monitor bound to each TCB. If
+ * <tt>TCB.virtualThreads</tt> is set and the JVM supports virtual threads,
+ * TCBs are instead backed by virtual threads, and control is handed off by
+ * parking and unparking the Java threads. A blocked virtual thread costs no
+ * OS thread, so many more TCBs may exist at once (see
+ * <tt>maxVirtualThreads</tt>).
  */
 public final class TCB {
 	/**
@@ -64,11 +75,19 @@ public final class TCB {
 		 */
 		Lib.assertTrue(javaThread == null && !done);
 
+		/*
+		 * The backend is chosen once, before the first TCB starts. We are not
+		 * yet a Nachos thread at that point, so the reflection is allowed.
+		 */
+		if (currentTCB == null)
+			selectBackend();
+
 		/*
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < (virtualThreadBuilder != null ? maxVirtualThreads
+				: maxThreads));
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +121,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = createThread(tcbTarget);
 				}
 			});
 
@@ -118,6 +137,25 @@ public final class TCB {
 			this.javaThread.start();
 			currentTCB.waitForInterrupt();
 		}
+		else if (virtualThreadBuilder != null) {
+			/*
+			 * This is the first TCB, but every TCB must be a virtual thread so
+			 * that the lone carrier thread is never left idle (see
+			 * selectBackend()). We are not yet a Nachos thread, so we can
+			 * create the virtual thread without privilege. The current Java
+			 * thread then parks for good, to keep the JVM alive until Nachos
+			 * exits.
+			 */
+			javaThread = createThread(new Runnable() {
+				public void run() {
+					threadroot();
+				}
+			});
+			javaThread.start();
+
+			while (true)
+				LockSupport.park();
+		}
 		else {
 			/*
 			 * This is the first TCB, so we don't need to make a new Java thread
@@ -130,6 +168,62 @@ public final class TCB {
 		}
 	}
 
+	/**
+	 * Decide which kind of Java thread will back TCBs. Virtual threads are used
+	 * only if <tt>TCB.virtualThreads</tt> is set and the JVM provides
+	 * <tt>Thread.ofVirtual()</tt>; they are reached through reflection so that
+	 * Nachos still compiles and runs on older JVMs.
+	 * 
+	 * <p>
+	 * Only one TCB ever runs at a time, so the virtual thread scheduler is
+	 * limited to a single carrier thread. Besides keeping every hand-off on
+	 * one OS thread, this means the scheduler never has to create a carrier
+	 * while a Nachos thread is running, which would need privilege.
+	 */
+	private static void selectBackend() {
+		if (!Config.getBoolean("TCB.virtualThreads", false))
+			return;
+
+		System.setProperty("jdk.virtualThreadScheduler.parallelism", "1");
+		System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", "1");
+
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+			virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			System.out.print(" (virtual threads unavailable)");
+			virtualThreadBuilder = null;
+			unstartedMethod = null;
+		}
+	}
+
+	/**
+	 * Return <tt>true</tt> if TCBs are backed by virtual threads.
+	 */
+	static boolean usingVirtualThreads() {
+		return virtualThreadBuilder != null;
+	}
+
+	/**
+	 * Create an unstarted Java thread of the selected kind to run the specified
+	 * target. Must be called with privilege.
+	 */
+	private static Thread createThread(Runnable target) {
+		if (virtualThreadBuilder == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstartedMethod.invoke(virtualThreadBuilder, target);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("could not create virtual thread: " + e);
+			return null;
+		}
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -157,6 +251,8 @@ public final class TCB {
 		if (this == currentTCB)
 			return;
 
+		privilege.stats.numContextSwitches++;
+
 		/*
 		 * There are some synchronization concerns here. As soon as we wake up
 		 * the next thread, we cannot assume anything about static variables, or
@@ -169,6 +265,9 @@ public final class TCB {
 		TCB previous = currentTCB;
 		previous.running = false;
 
+		if (privilege.processor != null)
+			privilege.processor.contextSwitch();
+
 		this.interrupt();
 		previous.yield();
 	}
@@ -297,13 +396,25 @@ public final class TCB {
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * With virtual threads the TCB parks instead, since waiting on a monitor
+	 * would pin the virtual thread to its carrier.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
+	private void waitForInterrupt() {
+		if (virtualThreadBuilder != null) {
+			while (!running)
+				LockSupport.park(this);
+			return;
+		}
+
+		synchronized (this) {
+			while (!running) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
 			}
 		}
 	}
@@ -314,9 +425,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		if (virtualThreadBuilder != null) {
+			running = true;
+			LockSupport.unpark(javaThread);
+			return;
+		}
+
+		synchronized (this) {
+			running = true;
+			notify();
+		}
 	}
 
 	private void associateThread(KThread thread) {
@@ -346,6 +465,12 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's that can be in
+	 * existence when TCBs are backed by virtual threads.
+	 */
+	public static final int maxVirtualThreads = 10000;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -379,6 +504,14 @@ public final class TCB {
 
 	private static KThread toBeDestroyed = null;
 
+	/**
+	 * The <tt>Thread.Builder.OfVirtual</tt> used to create virtual threads, or
+	 * <tt>null</tt> if TCBs are backed by platform threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	private static Method unstartedMethod = null;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -403,7 +536,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because of
@@ -14,10 +16,16 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
  * <tt>SynchList</tt>) is protected by a lock.
+ * 
+ * <p>
+ * Each queue holds at most <tt>PostOffice.queueCapacity</tt> messages. When
+ * the queue for a message is full, the postal worker waits for it to drain,
+ * leaving further packets in the network hardware until it does.
  */
 public class PostOffice {
 	/**
-	 * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+	 * Allocate a new post office, using an array of bounded
+	 * <tt>SynchList</tt>s.
 	 * Register the interrupt handlers with the network hardware and start the
 	 * "postal worker" thread.
 	 */
@@ -26,9 +34,11 @@ public class PostOffice {
 		messageSent = new Semaphore(0);
 		sendLock = new Lock();
 
+		int queueCapacity = Config.getInteger("PostOffice.queueCapacity", 64);
+
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new SynchList(queueCapacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -71,6 +81,35 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve up to <i>max</i> messages on the specified port, waiting until
+	 * at least one is available. Messages already queued behind the first are
+	 * taken without waiting.
+	 * 
+	 * @param port the port on which to wait for messages.
+	 * @param max the maximum number of messages to retrieve.
+	 * 
+	 * @return the messages received, in order of arrival.
+	 */
+	public MailMessage[] receive(int port, int max) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+		Lib.assertTrue(max > 0);
+
+		Lib.debug(dbgNet, "waiting for mail on port " + port);
+
+		ArrayList<Object> received = new ArrayList<Object>();
+		received.add(queues[port].removeFirst());
+		queues[port].drainTo(received, max - 1);
+
+		MailMessage[] mail = received.toArray(new MailMessage[received.size()]);
+
+		if (Lib.test(dbgNet))
+			System.out.println("got " + mail.length + " messages on port "
+					+ port);
+
+		return mail;
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -93,7 +132,8 @@ public class PostOffice {
 				System.out.println("delivering mail to port " + mail.dstPort
 						+ ": " + mail);
 
-			// atomically add message to the mailbox and wake a waiting thread
+			// atomically add message to the mailbox and wake a waiting thread,
+			// waiting first for room if the mailbox is full
 			queues[mail.dstPort].add(mail);
 		}
 	}
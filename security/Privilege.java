@@ -157,6 +157,23 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user ticks that can pass before a pending
+		 * interrupt becomes due. That many calls to <tt>tick(false)</tt>
+		 * would not invoke any interrupt handler.
+		 * 
+		 * @return the number of user ticks that can be batched.
+		 */
+		public long userTicksBeforeDue();
+
+		/**
+		 * Advance the simulated time by <i>count</i> user ticks at once, none
+		 * of which may cause a pending interrupt to become due.
+		 * 
+		 * @param count the number of user ticks to account for.
+		 */
+		public void advanceUserTicks(long count);
 	}
 
 	/**
@@ -169,6 +186,12 @@ public abstract class Privilege {
 		 * mode.
 		 */
 		public void flushPipe();
+
+		/**
+		 * Notify the processor that the current thread is switching to
+		 * another thread.
+		 */
+		public void contextSwitch();
 	}
 
 	/**
@@ -25,6 +25,10 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
+#define syscallFork		16
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +57,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -90,6 +94,21 @@ void exit(int status);
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * runs the same program from the same point, with a copy of the current
+ * process's memory, and its own file descriptors referring to the same files
+ * at the same positions. File maps made with mmap() are not inherited.
+ *
+ * Memory is not copied when the child is created: the two processes share
+ * each page until one of them writes it.
+ *
+ * In the parent, fork() returns the child process's process ID, which can be
+ * passed to join(). In the child, it returns 0. On error, returns -1 and no
+ * child is created.
+ */
+int fork();
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -181,6 +200,42 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * A segment of a scatter/gather buffer for readv() and writev(): iov_len
+ * bytes starting at iov_base.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Like read(), but scatter the data over the iovcnt segments described by
+ * iov, filling each segment completely before moving on to the next. The
+ * data is read with a single operation on the file or stream, as if by one
+ * read() of the total length; more than 8 pages are read 8 pages at a time.
+ * At most 16 segments can be passed.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred. This can
+ * happen if fileDescriptor is invalid, if iov or part of any segment is
+ * invalid, if iovcnt is negative or too large, or if the total length of the
+ * segments overflows an int.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the data from the iovcnt segments described by
+ * iov, in order. The data is written with a single operation on the file or
+ * stream, as if by one write() of the total length, so a line assembled from
+ * several pieces costs one system call. More than 8 pages are written 8 pages
+ * at a time.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred. As for
+ * write(), it is an error if fewer bytes than requested are written. The
+ * errors of readv() apply as well.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -215,18 +270,32 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
- *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Map length bytes of the file referenced by fileDescriptor, starting at
+ * offset, into memory. offset must be a multiple of the page size. The kernel
+ * chooses the address of the map, above the rest of the address space.
+ *
+ * Pages of the map are read from the file when they are first used. Pages
+ * that are written are written back to the file when the kernel needs their
+ * memory, when the map is removed with munmap(), and when the process exits;
+ * until then, read() and write() on the file may not see the changes. Writing
+ * past the end of the file extends it. The map stays valid after
+ * fileDescriptor is closed.
+ *
+ * The maps of a process take at most 1024 pages of address space, counting
+ * the space of maps removed below the highest one; mmap() fails if the new
+ * map does not fit.
+ *
+ * Returns the address of the map, or -1 if an error occurred.
+ */
+void *mmap(int fileDescriptor, int offset, int length);
+
+/**
+ * Remove the map starting at address, which must have been returned by
+ * mmap(), writing its dirty pages back to the file.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns 0 on success, or -1 if no map starts at address.
  */
-int mmap(int fileDescriptor, char *address);
+int munmap(void *address);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
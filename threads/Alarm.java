@@ -2,11 +2,20 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.PriorityQueue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Pending wake-ups are kept in a hierarchical timing wheel keyed on absolute
+ * tick counts. Each of the <tt>numLevels</tt> levels has 64 slots, and a slot
+ * at level <i>L</i> covers 64<sup><i>L</i></sup> ticks. A wake-up is filed at
+ * the level of the highest base-64 digit in which its time differs from the
+ * wheel's current time, and moves down a level each time the wheel reaches
+ * its slot, until it expires from level 0. A bitmap of occupied slots per
+ * level lets the wheel skip straight to the next slot that needs attention,
+ * however far the clock has moved. Wake-up nodes are pooled, so sleeping does
+ * not allocate.
  */
 public class Alarm {
 	/**
@@ -17,7 +26,7 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		waitQueue = new PriorityQueue<timeWaiter>();
+		wheelTime = Machine.timer().getTime();
 
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
@@ -28,26 +37,36 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every sleeper
+	 * whose time has come, in one batch, and causes the current thread to
+	 * yield, forcing a context switch if there is another thread that should be
+	 * run.
 	 */
 	public void timerInterrupt() {
-		long currentTime = Machine.timer().getTime();
+		advance(Machine.timer().getTime());
 
-		timeWaiter nextWaiter = waitQueue.peek();
-		while (nextWaiter != null && nextWaiter.timeToWake <= currentTime) {
-			waitQueue.poll();
-			nextWaiter.waiter.ready();
+		while (expired != null) {
+			Node node = expired;
+			expired = node.next;
 
-			Lib.debug(mySignal,
-					"It's " + nextWaiter.waiter.toString()+ "'s time to wake up ");
+			KThread thread = node.thread;
+			Runnable action = node.action;
+			freeNode(node);
 
-			nextWaiter = waitQueue.peek();
-		}
+			if (thread != null) {
+				if (Lib.test(mySignal))
+					Lib.debug(mySignal, "It's " + thread.toString()
+							+ "'s time to wake up ");
 
-		KThread.currentThread().yield();
+				thread.ready();
+			}
+			else {
+				action.run();
+			}
+		}
+		expiredTail = null;
 
+		KThread.yield();
 	}
 
 	/**
@@ -63,76 +82,340 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		/**
-		 * Original implementation--busy waiting:
-		 *
-		 * // for now, cheat just to get something working (busy waiting is bad)
-		 * long wakeTime = Machine.timer().getTime() + x;
-		 * while (wakeTime > Machine.timer().getTime())
-		 * 		KThread.yield();
-		 */
-
 		boolean intStatus = Machine.interrupt().disable();
 
-		long wakeTime = Machine.timer().getTime() + x;
-		KThread thread = KThread.currentThread();
-		waitQueue.add(new timeWaiter(thread, wakeTime));
+		long wakeTime = wakeTime(x);
+
+		Node node = allocateNode();
+		node.thread = KThread.currentThread();
+		node.time = wakeTime;
+		insert(node);
 
-		Lib.debug(mySignal,
-				KThread.currentThread().toString()+ " sleeps util " + wakeTime);
+		if (Lib.test(mySignal))
+			Lib.debug(mySignal,
+					KThread.currentThread().toString() + " sleeps util " + wakeTime);
 
 		KThread.sleep();
 
 		Machine.interrupt().restore(intStatus);
+	}
 
+	/**
+	 * Arrange for <i>action</i> to run in the timer interrupt handler, during
+	 * the first timer interrupt at least <i>x</i> ticks from now. The action
+	 * runs with interrupts disabled, so it must not block; typically it moves
+	 * a thread back to the ready queue.
+	 * 
+	 * @param x the minimum number of clock ticks to wait.
+	 * @param action the action to run.
+	 * @return a handle that can cancel the action before it runs.
+	 */
+	public Timeout schedule(long x, Runnable action) {
+		Lib.assertTrue(action != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Node node = allocateNode();
+		node.action = action;
+		node.time = wakeTime(x);
+		insert(node);
+
+		Timeout timeout = new Timeout(node);
+
+		Machine.interrupt().restore(intStatus);
 
+		return timeout;
 	}
 
 	/**
-	 * A queue to store threads waiting on the waitUntil() method.
-	 * Objects putting into the queue are of timeWaiter type.
-	 * Objects in the queue are sorted by their wakeup time.
+	 * Put the current thread to sleep until another thread takes it from
+	 * <i>waitQueue</i> with <tt>nextThread()</tt>, or until the first timer
+	 * interrupt at least <i>x</i> ticks from now, whichever comes first. On
+	 * timeout the thread is removed from the queue. Interrupts must be
+	 * disabled, and the current thread must already be waiting on the queue.
+	 * 
+	 * @param waitQueue the queue the current thread is waiting on.
+	 * @param x the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the thread was taken from the queue,
+	 * <tt>false</tt> if the wait timed out.
 	 */
-	private PriorityQueue<timeWaiter> waitQueue;
+	public boolean sleepOn(ThreadQueue waitQueue, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
 
-	private static final char mySignal = 'b';
+		QueueTimeout action = new QueueTimeout(waitQueue, KThread.currentThread());
+		Timeout timeout = schedule(x, action);
+
+		KThread.sleep();
+
+		if (action.timedOut)
+			return false;
+
+		timeout.cancel();
+		return true;
+	}
 
 	/**
-	 * A data type to store information of threads waiting on the waitUntil() method.
-	 * It implements Comparable so objects of it can be sorted by the timeToWake field.
+	 * Removes a thread from a queue and readies it, unless the thread already
+	 * left the queue the normal way.
 	 */
-	private class timeWaiter implements Comparable<timeWaiter>{
-		/**
-		 * Create a new time waiter.
-		 * Specify the thread who's waiting and the time it should be waken up.
-		 */
-		timeWaiter(KThread thread, long time) {
-			waiter = thread;
-			timeToWake = time;
+	private static class QueueTimeout implements Runnable {
+		QueueTimeout(ThreadQueue waitQueue, KThread thread) {
+			this.waitQueue = waitQueue;
+			this.thread = thread;
 		}
 
-		/**
-	     * The timeWaiter object with larger number of timeToWake is considered larger.
-		 */
-		public int compareTo(timeWaiter o) {
-			if (this.timeToWake > o.timeToWake)
-				return 1;
+		public void run() {
+			if (waitQueue.remove(thread)) {
+				timedOut = true;
+				thread.ready();
+			}
+		}
+
+		private ThreadQueue waitQueue;
 
-			if (this.timeToWake < o.timeToWake)
-				return -1;
+		private KThread thread;
 
-			return 0;
+		private boolean timedOut = false;
+	}
+
+	/**
+	 * A handle on an action passed to <tt>schedule()</tt>. Nodes are reused,
+	 * so the handle remembers the generation of its node and does nothing once
+	 * the node has moved on.
+	 */
+	public class Timeout {
+		private Timeout(Node node) {
+			this.node = node;
+			this.generation = node.generation;
 		}
 
 		/**
-		 * The thread waiting on waitUntil() method.
+		 * Cancel the action if it has not run yet.
+		 * 
+		 * @return <tt>true</tt> if the action was cancelled, <tt>false</tt> if
+		 * it has already run or been cancelled.
 		 */
-		KThread waiter;
+		public boolean cancel() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			boolean cancelled = isPending();
+			if (cancelled) {
+				unlink(node);
+				freeNode(node);
+			}
+
+			Machine.interrupt().restore(intStatus);
+
+			return cancelled;
+		}
 
 		/**
-		 * The time after which it should be waken.
+		 * Return <tt>true</tt> if the action has neither run nor been
+		 * cancelled.
 		 */
-		long timeToWake;
+		public boolean isPending() {
+			return node.generation == generation && node.level >= 0;
+		}
+
+		private Node node;
+
+		private int generation;
+	}
+
+	/**
+	 * Return the absolute time <i>x</i> ticks from now, saturating instead of
+	 * overflowing.
+	 */
+	private long wakeTime(long x) {
+		long now = Machine.timer().getTime();
+		long wakeTime = now + x;
 
+		if (x > 0 && wakeTime < now)
+			wakeTime = Long.MAX_VALUE;
+
+		return wakeTime;
 	}
+
+	/**
+	 * File a node in the wheel according to its time. A node that is already
+	 * due goes into the current level 0 slot, so the next advance expires it.
+	 */
+	private void insert(Node node) {
+		int level, slot;
+
+		if (node.time <= wheelTime) {
+			level = 0;
+			slot = (int) wheelTime & slotMask;
+		}
+		else {
+			long diff = node.time ^ wheelTime;
+			level = (63 - Long.numberOfLeadingZeros(diff)) / slotBits;
+			slot = (int) (node.time >>> (level * slotBits)) & slotMask;
+		}
+
+		int index = level * numSlots + slot;
+
+		node.level = level;
+		node.slot = slot;
+		node.next = null;
+		node.prev = tails[index];
+		if (tails[index] == null)
+			heads[index] = node;
+		else
+			tails[index].next = node;
+		tails[index] = node;
+
+		occupied[level] |= 1L << slot;
+	}
+
+	/**
+	 * Remove a node from its slot.
+	 */
+	private void unlink(Node node) {
+		int index = node.level * numSlots + node.slot;
+
+		if (node.prev == null)
+			heads[index] = node.next;
+		else
+			node.prev.next = node.next;
+		if (node.next == null)
+			tails[index] = node.prev;
+		else
+			node.next.prev = node.prev;
+
+		if (heads[index] == null)
+			occupied[node.level] &= ~(1L << node.slot);
+
+		node.prev = node.next = null;
+		node.level = -1;
+	}
+
+	/**
+	 * Move the wheel forward to the specified time. Each slot whose start time
+	 * is reached is emptied: level 0 slots onto the <tt>expired</tt> list, and
+	 * higher slots back into the wheel at lower levels.
+	 */
+	private void advance(long now) {
+		while (true) {
+			int level;
+			long candidates = 0;
+
+			// slots at lower levels always start before those at higher levels
+			for (level = 0; level < numLevels; level++) {
+				int digit = (int) (wheelTime >>> (level * slotBits)) & slotMask;
+				candidates = occupied[level] & (-1L << digit);
+				if (candidates != 0)
+					break;
+			}
+
+			if (level == numLevels)
+				break;
+
+			int slot = Long.numberOfTrailingZeros(candidates);
+			int shift = level * slotBits;
+			long blockMask = ((long) numSlots << shift) - 1;
+			long start = Math.max((wheelTime & ~blockMask)
+					| ((long) slot << shift), wheelTime);
+
+			if (start > now)
+				break;
+
+			wheelTime = start;
+
+			int index = level * numSlots + slot;
+			Node node = heads[index];
+			heads[index] = tails[index] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (node != null) {
+				Node next = node.next;
+
+				if (level == 0) {
+					node.level = -1;
+					node.prev = null;
+					node.next = null;
+					if (expiredTail == null)
+						expired = node;
+					else
+						expiredTail.next = node;
+					expiredTail = node;
+				}
+				else {
+					insert(node);
+				}
+
+				node = next;
+			}
+		}
+
+		if (now > wheelTime)
+			wheelTime = now;
+	}
+
+	private Node allocateNode() {
+		Node node = freeNodes;
+		if (node == null)
+			return new Node();
+
+		freeNodes = node.next;
+		node.next = null;
+		return node;
+	}
+
+	private void freeNode(Node node) {
+		node.generation++;
+		node.level = -1;
+		node.thread = null;
+		node.action = null;
+		node.prev = null;
+		node.next = freeNodes;
+		freeNodes = node;
+	}
+
+	/**
+	 * A pending wake-up: either a sleeping thread or an action to run.
+	 */
+	private static class Node {
+		long time;
+
+		KThread thread;
+
+		Runnable action;
+
+		/** The level and slot this node is filed under; level -1 if none. */
+		int level = -1, slot;
+
+		/** Incremented each time the node is returned to the pool. */
+		int generation = 0;
+
+		Node prev, next;
+	}
+
+	private static final int slotBits = 6;
+
+	private static final int numSlots = 1 << slotBits;
+
+	private static final int slotMask = numSlots - 1;
+
+	/** Enough levels of 6 bits each to cover every 64-bit time. */
+	private static final int numLevels = (64 + slotBits - 1) / slotBits;
+
+	/** The time up to which the wheel has been advanced. */
+	private long wheelTime;
+
+	/** The first and last node of each slot, indexed by level and slot. */
+	private Node[] heads = new Node[numLevels * numSlots];
+
+	private Node[] tails = new Node[numLevels * numSlots];
+
+	/** Bit <i>s</i> of <tt>occupied[L]</tt> is set if slot <i>s</i> of level <i>L</i> is non-empty. */
+	private long[] occupied = new long[numLevels];
+
+	/** Nodes expired by <tt>advance()</tt> and not yet woken. */
+	private Node expired = null, expiredTail = null;
+
+	/** Nodes available for reuse, linked through <tt>next</tt>. */
+	private Node freeNodes = null;
+
+	private static final char mySignal = 'b';
 }
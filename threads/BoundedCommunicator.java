@@ -0,0 +1,171 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>bounded communicator</i> passes 32-bit words from speakers to listeners
+ * through a fixed-size ring buffer. Unlike <tt>Communicator</tt>, a speaker
+ * does not wait for a listener: it returns as soon as its words are in the
+ * buffer, and blocks only while the buffer is full. A listener blocks only
+ * while the buffer is empty.
+ * 
+ * <p>
+ * Words can be moved in bulk, so a whole batch costs one lock acquisition and
+ * at most one wake-up on each side instead of a handshake per word. Words
+ * from a single <tt>speak()</tt> call keep their order, but when the buffer
+ * fills up they may be interleaved with words from other speakers.
+ */
+public class BoundedCommunicator {
+	/**
+	 * Allocate a new bounded communicator.
+	 * 
+	 * @param capacity the maximum number of words buffered at once.
+	 */
+	public BoundedCommunicator(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+
+		lock = new Lock();
+		notEmpty = new Condition2(lock);
+		notFull = new Condition2(lock);
+	}
+
+	/**
+	 * Put <i>len</i> words from <i>words</i>, starting at <i>off</i>, into the
+	 * buffer, waiting for room as necessary.
+	 * 
+	 * @param words the array holding the words to send.
+	 * @param off the index of the first word to send.
+	 * @param len the number of words to send.
+	 */
+	public void speak(int[] words, int off, int len) {
+		Lib.assertTrue(off >= 0 && len >= 0 && off + len <= words.length);
+
+		lock.acquire();
+
+		while (len > 0) {
+			while (count == buffer.length)
+				notFull.sleep();
+
+			int amount = Math.min(len, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			int first = Math.min(amount, buffer.length - tail);
+
+			System.arraycopy(words, off, buffer, tail, first);
+			System.arraycopy(words, off + first, buffer, 0, amount - first);
+
+			if (count == 0)
+				notEmpty.wake();
+
+			count += amount;
+			off += amount;
+			len -= amount;
+		}
+
+		// pass the turn on if there is still room for another speaker
+		if (count < buffer.length)
+			notFull.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Put a single word into the buffer, waiting for room if necessary.
+	 * 
+	 * @param word the word to send.
+	 */
+	public void speak(int word) {
+		lock.acquire();
+
+		while (count == buffer.length)
+			notFull.sleep();
+
+		buffer[(head + count) % buffer.length] = word;
+
+		if (count++ == 0)
+			notEmpty.wake();
+		if (count < buffer.length)
+			notFull.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Wait until the buffer holds at least one word, then move up to
+	 * <i>max</i> words into <i>dst</i>, starting at <i>off</i>.
+	 * 
+	 * @param dst the array to receive the words.
+	 * @param off the index at which to store the first word.
+	 * @param max the maximum number of words to receive; must be positive.
+	 * @return the number of words received.
+	 */
+	public int listen(int[] dst, int off, int max) {
+		Lib.assertTrue(off >= 0 && max > 0 && off + max <= dst.length);
+
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+
+		int amount = Math.min(max, count);
+		int first = Math.min(amount, buffer.length - head);
+
+		System.arraycopy(buffer, head, dst, off, first);
+		System.arraycopy(buffer, 0, dst, off + first, amount - first);
+
+		if (count == buffer.length)
+			notFull.wake();
+
+		head = (head + amount) % buffer.length;
+		count -= amount;
+
+		// pass the turn on if words are left for another listener
+		if (count > 0)
+			notEmpty.wake();
+
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Wait for a word to arrive and return it.
+	 * 
+	 * @return the word received.
+	 */
+	public int listen() {
+		lock.acquire();
+
+		while (count == 0)
+			notEmpty.sleep();
+
+		int word = buffer[head];
+
+		if (count-- == buffer.length)
+			notFull.wake();
+		if (count > 0)
+			notEmpty.wake();
+
+		head = (head + 1) % buffer.length;
+
+		lock.release();
+
+		return word;
+	}
+
+	private Lock lock;
+
+	/** Listeners wait on this condition while the buffer is empty. */
+	private Condition2 notEmpty;
+
+	/** Speakers wait on this condition while the buffer is full. */
+	private Condition2 notFull;
+
+	/** The ring buffer; <tt>count</tt> words starting at <tt>head</tt>. */
+	private int[] buffer;
+
+	private int head = 0;
+
+	private int count = 0;
+}
@@ -82,15 +82,47 @@ public class Condition {
 		Semaphore waiter = new Semaphore(0);
 		waitQueue.add(waiter);
 
+		if (WaitMonitor.enabled)
+			WaitMonitor.block(this);
+
 		// Because waiter is now in the waiQueue, there is no chance the sleeper will
 		// miss the wake-up, even though the lock is released before calling P()
 		conditionLock.release();
 		waiter.P();
+		if (WaitMonitor.enabled)
+			WaitMonitor.unblock(this);
 
 		// Automatically acquire the lock when returning from sleeping
 		conditionLock.acquire();
 	}
 
+	/**
+	 * Like <tt>sleep()</tt>, but also wake up after at least <i>ticks</i>
+	 * clock ticks if no other thread wakes this thread first. The thread
+	 * reacquires the lock before returning in either case.
+	 * 
+	 * @param ticks the maximum number of clock ticks to sleep.
+	 */
+	public void sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		Semaphore waiter = new Semaphore(0);
+		waitQueue.add(waiter);
+
+		if (WaitMonitor.enabled)
+			WaitMonitor.block(this);
+		conditionLock.release();
+		boolean woken = waiter.tryP(ticks);
+		if (WaitMonitor.enabled)
+			WaitMonitor.unblock(this);
+		conditionLock.acquire();
+
+		// if we timed out, our semaphore may still be queued; if a wake() has
+		// taken it since, that wake-up belongs to the next waiter instead
+		if (!woken && !waitQueue.remove(waiter))
+			wake();
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
@@ -36,12 +36,47 @@ public class Condition2 {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (WaitMonitor.enabled)
+			WaitMonitor.block(this);
+
 		waitQueue.waitForAccess(KThread.currentThread());
 
 		conditionLock.release();
 
 		KThread.sleep();
 
+		if (WaitMonitor.enabled)
+			WaitMonitor.unblock(this);
+
+		conditionLock.acquire();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but also wake up after at least <i>ticks</i>
+	 * clock ticks if no other thread wakes this thread first. The thread
+	 * reacquires the lock before returning in either case.
+	 * 
+	 * @param ticks the maximum number of clock ticks to sleep.
+	 */
+	public void sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (WaitMonitor.enabled)
+			WaitMonitor.block(this);
+
+		waitQueue.waitForAccess(KThread.currentThread());
+
+		conditionLock.release();
+
+		ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+
+		if (WaitMonitor.enabled)
+			WaitMonitor.unblock(this);
+
 		conditionLock.acquire();
 
 		Machine.interrupt().restore(intStatus);
@@ -72,8 +107,13 @@ public class Condition2 {
 
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		while (waitQueue!=null)
-			wake();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread;
+		while ((thread = waitQueue.nextThread()) != null)
+			thread.ready();
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	private Lock conditionLock;
@@ -82,5 +122,5 @@ public class Condition2 {
 	 * A list of thread that waiting for this condition
 	 */
 	private ThreadQueue waitQueue =
-			ThreadedKernel.scheduler.newThreadQueue(true);
+			ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,325 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor fairly among threads, in proportion
+ * to their weights.
+ * 
+ * <p>
+ * Each thread accumulates a <i>virtual runtime</i>: the processor time it has
+ * used, divided by its weight. The next thread is always the one with the
+ * least virtual runtime, so over time every runnable thread receives a share
+ * of the processor proportional to its weight. Waiting threads are kept in a
+ * balanced tree ordered by virtual runtime, and ties are broken in the order
+ * the threads were queued.
+ * 
+ * <p>
+ * The weight of a thread follows from its priority, in the same range as for
+ * <tt>PriorityScheduler</tt>: each step of priority is worth about 25% more
+ * processor time, and the default priority has weight 1024.
+ * 
+ * <p>
+ * The scheduler tracks the smallest virtual runtime of any runnable thread. A
+ * new thread starts there, so it cannot monopolize the processor by starting
+ * at zero. A thread that wakes up after sleeping is moved up to that minimum,
+ * less a small credit of <tt>FairScheduler.sleeperCredit</tt> ticks, so it
+ * runs soon without being able to bank the time it spent asleep.
+ * 
+ * <p>
+ * As in <tt>MultiLevelFeedbackScheduler</tt>, the queue used for the processor
+ * is the one that is acquired without transferring priority; it is the only
+ * queue that places new and waking threads. Other queues order their waiters
+ * by virtual runtime too. Priority is never transferred.
+ */
+public class FairScheduler extends Scheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public FairScheduler() {
+		int credit = Config.getInteger("FairScheduler.sleeperCredit", 1000);
+		Lib.assertTrue(credit >= 0);
+
+		sleeperCredit = (long) credit << vruntimeShift;
+	}
+
+	/**
+	 * Allocate a new fair thread queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue guards a resource
+	 * with an owner; such a queue is never the processor queue.
+	 * @return a new fair thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Set the priority, and so the weight, of the specified thread. Its
+	 * virtual runtime so far is kept.
+	 */
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum
+				&& priority <= PriorityScheduler.priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+
+		// the weight only matters when the thread is charged
+		if (state == running && state.waitQueue == null)
+			charge(state, Machine.timer().getTime());
+
+		state.priority = priority;
+		state.weight = weights[priority];
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == PriorityScheduler.priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == PriorityScheduler.priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	private ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Charge the processor time used by the specified thread since it was
+	 * last charged to its virtual runtime.
+	 */
+	private void charge(ThreadState state, long now) {
+		state.vruntime += ((now - state.dispatchTime) << weightShift)
+				/ state.weight;
+		state.dispatchTime = now;
+	}
+
+	/**
+	 * A queue of threads ordered by virtual runtime.
+	 */
+	private class FairQueue extends ThreadQueue {
+		FairQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+
+			if (state == running) {
+				// giving up the processor, by yielding or by blocking
+				charge(state, Machine.timer().getTime());
+			}
+			else if (processorQueue) {
+				if (!state.started) {
+					// a new thread starts level with the others
+					state.vruntime = Math.max(state.vruntime, minVruntime);
+				}
+				else {
+					// woken up by another thread
+					state.vruntime = Math.max(state.vruntime, minVruntime
+							- sleeperCredit);
+				}
+			}
+
+			add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// a thread that was queued was already charged when it was queued
+			if (processorQueue && running != null && running.waitQueue == null)
+				charge(running, Machine.timer().getTime());
+
+			if (waiting.isEmpty()) {
+				// the idle thread runs next, and nobody is charged for it
+				if (processorQueue)
+					running = null;
+				return null;
+			}
+
+			ThreadState state = waiting.first();
+			remove(state);
+
+			if (processorQueue) {
+				minVruntime = Math.max(minVruntime, state.vruntime);
+
+				state.started = true;
+				state.dispatchTime = Machine.timer().getTime();
+				running = state;
+			}
+
+			return state.thread;
+		}
+
+		/**
+		 * The specified thread has received access without waiting. Acquiring
+		 * a queue that does not transfer priority marks it as the processor
+		 * queue, and the thread as running.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(waiting.isEmpty());
+
+			if (!transferPriority) {
+				processorQueue = true;
+
+				ThreadState state = getThreadState(thread);
+				state.started = true;
+				state.dispatchTime = Machine.timer().getTime();
+				running = state;
+			}
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = (ThreadState) thread.schedulingState;
+			if (state == null || state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (ThreadState state : waiting)
+				System.out.print(state.thread + " ");
+		}
+
+		private void add(ThreadState state) {
+			state.waitQueue = this;
+			state.seq = nextSeq++;
+			waiting.add(state);
+		}
+
+		private void remove(ThreadState state) {
+			waiting.remove(state);
+			state.waitQueue = null;
+		}
+
+		private boolean transferPriority;
+
+		private boolean processorQueue = false;
+
+		private TreeSet<ThreadState> waiting = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.vruntime != b.vruntime)
+							return Long.compare(a.vruntime, b.vruntime);
+						else
+							return Long.compare(a.seq, b.seq);
+					}
+				});
+	}
+
+	/**
+	 * The scheduling state of a thread: its priority and weight, its virtual
+	 * runtime, and its place in a queue. The virtual runtime must not change
+	 * while the thread waits on a queue, since it is the thread's sort key.
+	 */
+	private class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		private KThread thread;
+
+		private int priority = PriorityScheduler.priorityDefault;
+
+		private int weight = weights[PriorityScheduler.priorityDefault];
+
+		/**
+		 * The weighted processor time used, in units of
+		 * 2<sup>-<tt>vruntimeShift</tt></sup> ticks at the default weight.
+		 */
+		private long vruntime = 0;
+
+		/** The time the thread was last dispatched or charged. */
+		private long dispatchTime = 0;
+
+		/** <tt>true</tt> once the thread has run. */
+		private boolean started = false;
+
+		/** The order in which the thread joined its queue, to break ties. */
+		private long seq;
+
+		/** The queue this thread is waiting on, if any. */
+		private FairQueue waitQueue = null;
+	}
+
+	/**
+	 * The weight of each priority. Priority 1, the default, has weight 1024,
+	 * and each step is a factor of about 1.25.
+	 */
+	private static final int[] weights = { 820, 1024, 1277, 1586, 1991, 2501,
+			3121, 3906 };
+
+	/** Virtual runtime is kept in fractions of a tick. */
+	private static final int vruntimeShift = 10;
+
+	/** Dividing by a weight of 1024 must leave one tick as 1 << vruntimeShift. */
+	private static final int weightShift = vruntimeShift + 10;
+
+	/** The credit given to a waking thread, in virtual runtime units. */
+	private long sleeperCredit;
+
+	/** A lower bound on the virtual runtime of every runnable thread. */
+	private long minVruntime = 0;
+
+	/**
+	 * The thread on the processor, as last dispatched, or <tt>null</tt> while
+	 * the idle thread runs.
+	 */
+	private ThreadState running = null;
+
+	private long nextSeq = 0;
+}
@@ -0,0 +1,197 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * The result of some work that finishes later, such as an I/O request or a
+ * task running on another thread. A future starts out pending and is
+ * completed exactly once, with a value of type <tt>T</tt>.
+ * 
+ * <p>
+ * Any thread can wait for a future with <tt>await()</tt>, with or without a
+ * time limit. <tt>complete()</tt> may be called from a thread or from an
+ * interrupt handler: it only readies the waiting threads, and runs the
+ * actions registered with <tt>thenRun()</tt>, which therefore must not
+ * block. <tt>allOf()</tt> combines several futures into one that completes
+ * when they all have.
+ */
+public class KFuture<T> {
+	/**
+	 * Allocate a new pending future.
+	 */
+	public KFuture() {
+	}
+
+	/**
+	 * Complete this future with the specified value, waking every thread
+	 * waiting for it and running its actions, in the order they were added.
+	 * Does nothing if this future is already complete.
+	 * 
+	 * @param value the value of this future.
+	 * @return <tt>true</tt> if this call completed the future.
+	 */
+	public boolean complete(T value) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (done) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		this.value = value;
+		done = true;
+
+		KThread thread;
+		while ((thread = waitQueue.nextThread()) != null)
+			thread.ready();
+
+		if (actions != null) {
+			for (int i = 0; i < actions.size(); i++)
+				actions.get(i).run();
+			actions = null;
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+	}
+
+	/**
+	 * Wait for this future to complete, and return its value.
+	 * 
+	 * @return the value of this future.
+	 */
+	public T await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!done) {
+			if (WaitMonitor.enabled)
+				WaitMonitor.block(this);
+
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+
+			if (WaitMonitor.enabled)
+				WaitMonitor.unblock(this);
+		}
+
+		Lib.assertTrue(done);
+
+		Machine.interrupt().restore(intStatus);
+		return value;
+	}
+
+	/**
+	 * Wait for this future to complete, giving up after at least
+	 * <i>ticks</i> clock ticks.
+	 * 
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the future completed, <tt>false</tt> if the
+	 * wait timed out.
+	 */
+	public boolean await(long ticks) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!done && ticks > 0) {
+			if (WaitMonitor.enabled)
+				WaitMonitor.block(this);
+
+			waitQueue.waitForAccess(KThread.currentThread());
+			ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+
+			if (WaitMonitor.enabled)
+				WaitMonitor.unblock(this);
+		}
+
+		boolean completed = done;
+
+		Machine.interrupt().restore(intStatus);
+		return completed;
+	}
+
+	/**
+	 * Test if this future has completed.
+	 * 
+	 * @return <tt>true</tt> if this future has completed.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Return the value of this future, which must have completed.
+	 * 
+	 * @return the value of this future.
+	 */
+	public T get() {
+		Lib.assertTrue(done);
+
+		return value;
+	}
+
+	/**
+	 * Arrange for <i>action</i> to run when this future completes, in the
+	 * thread or interrupt handler that completes it, with interrupts disabled.
+	 * If this future has already completed, the action runs now, in the
+	 * current thread.
+	 * 
+	 * @param action the action to run; must not block.
+	 */
+	public void thenRun(Runnable action) {
+		Lib.assertTrue(action != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (done) {
+			action.run();
+		}
+		else {
+			if (actions == null)
+				actions = new ArrayList<Runnable>();
+			actions.add(action);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return a future that completes when all the specified futures have
+	 * completed. Its value is <tt>null</tt>.
+	 * 
+	 * @param futures the futures to wait for.
+	 * @return a future that completes after all of <i>futures</i>.
+	 */
+	public static KFuture<Void> allOf(KFuture<?>... futures) {
+		final KFuture<Void> all = new KFuture<Void>();
+		final int[] remaining = new int[] { futures.length + 1 };
+
+		Runnable countDown = new Runnable() {
+			public void run() {
+				if (--remaining[0] == 0)
+					all.complete(null);
+			}
+		};
+
+		for (int i = 0; i < futures.length; i++)
+			futures[i].thenRun(countDown);
+
+		// the extra count keeps futures that are already done from completing
+		// the result before every action is registered
+		boolean intStatus = Machine.interrupt().disable();
+		countDown.run();
+		Machine.interrupt().restore(intStatus);
+
+		return all;
+	}
+
+	private T value = null;
+
+	private boolean done = false;
+
+	/** Actions to run on completion, or <tt>null</tt> if there are none. */
+	private ArrayList<Runnable> actions = null;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -156,6 +156,9 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		// the new thread owns its join queue, so joiners donate priority to it
+		joinWaitingThreads.acquire(this);
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -284,8 +287,13 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+
+			if (SchedulerMetrics.enabled)
+				SchedulerMetrics.ready(this, numReadyThreads);
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -309,10 +317,14 @@ public class KThread {
 
 		// Only put the parent to sleep when the child has not finished executing
 		if (status != statusFinished) {
+			if (WaitMonitor.enabled)
+				WaitMonitor.block(this);
 			//Caller's queue
 			joinWaitingThreads.waitForAccess(currentThread);
 			//Sleep current thread
 			sleep();
+			if (WaitMonitor.enabled)
+				WaitMonitor.unblock(this);
 		}
 
 		// Release the lock
@@ -329,14 +341,28 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * If <tt>ThreadedKernel.idleFastForward</tt> is set, the idle thread does
+	 * not spin while the ready queue is empty, but lets the simulated time
+	 * jump straight to the next pending interrupt.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					boolean intStatus = Machine.interrupt().disable();
+
+					// nothing can happen until a device interrupts
+					if (idleFastForward && numReadyThreads == 0)
+						Machine.interrupt().idle();
+
 					yield();
+
+					Machine.interrupt().restore(intStatus);
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -354,6 +380,11 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReadyThreads--;
+
+		if (SchedulerMetrics.enabled)
+			SchedulerMetrics.dispatch(currentThread, nextThread, numReadyThreads);
 
 		nextThread.run();
 	}
@@ -512,6 +543,13 @@ public class KThread {
 
 	private static ThreadQueue readyQueue = null;
 
+	/** The number of threads on the ready queue. */
+	private static int numReadyThreads = 0;
+
+	/** <tt>true</tt> if the idle thread skips ahead to the next interrupt. */
+	private static boolean idleFastForward = Config.getBoolean(
+			"ThreadedKernel.idleFastForward", false);
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
@@ -0,0 +1,199 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A pool of worker threads that run short tasks, so that each task does not
+ * pay for creating and destroying a <tt>KThread</tt> (and its <tt>TCB</tt>
+ * and Java thread).
+ * 
+ * <p>
+ * <tt>submit()</tt> queues a task and returns a <tt>Task</tt> handle that can
+ * be joined like a thread. Tasks are run in the order they were submitted,
+ * each by whichever worker is free first. Workers are forked on demand, up to
+ * the pool's limit, and sleep when there is nothing to do; they never finish.
+ * 
+ * <p>
+ * A task runs on its worker's thread, so inside a task
+ * <tt>KThread.currentThread()</tt> is the worker, which keeps its own
+ * priority from one task to the next. While a task runs, threads joining it
+ * donate priority to its worker, as they would to a thread they join.
+ */
+public class KThreadPool {
+	/**
+	 * Allocate a new thread pool.
+	 * 
+	 * @param maxWorkers the maximum number of worker threads.
+	 */
+	public KThreadPool(int maxWorkers) {
+		Lib.assertTrue(maxWorkers > 0);
+
+		this.maxWorkers = maxWorkers;
+	}
+
+	/**
+	 * Queue a task to be run by a worker thread, forking a new worker if none
+	 * is free and the pool is not full.
+	 * 
+	 * @param target the object whose <tt>run()</tt> method to call.
+	 * @return a handle on the task.
+	 */
+	public Task submit(Runnable target) {
+		Lib.assertTrue(target != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Task task = new Task(target);
+		pending.add(task);
+
+		KThread worker = idleWorkers.nextThread();
+		if (worker != null) {
+			worker.ready();
+		}
+		else if (numWorkers < maxWorkers) {
+			numWorkers++;
+			new KThread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}).setName("pool worker " + numWorkers).fork();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return task;
+	}
+
+	/**
+	 * The body of each worker thread: run pending tasks forever, sleeping
+	 * while there are none.
+	 */
+	private void work() {
+		KThread thread = KThread.currentThread();
+
+		while (true) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			while (pending.isEmpty()) {
+				idleWorkers.waitForAccess(thread);
+				KThread.sleep();
+			}
+
+			Task task = pending.removeFirst();
+			task.start(thread);
+
+			Machine.interrupt().restore(intStatus);
+
+			task.target.run();
+
+			intStatus = Machine.interrupt().disable();
+
+			task.finish();
+
+			Machine.interrupt().restore(intStatus);
+		}
+	}
+
+	/**
+	 * A task submitted to a <tt>KThreadPool</tt>.
+	 */
+	public class Task {
+		private Task(Runnable target) {
+			this.target = target;
+		}
+
+		/**
+		 * Wait for this task to finish. Returns immediately if it already has.
+		 */
+		public void join() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			if (!done) {
+				if (WaitMonitor.enabled)
+					WaitMonitor.block(this);
+
+				// until a worker owns joinQueue, wait where nobody is donated to
+				if (worker == null)
+					startQueue.waitForAccess(KThread.currentThread());
+				else
+					joinQueue.waitForAccess(KThread.currentThread());
+
+				KThread.sleep();
+
+				if (WaitMonitor.enabled)
+					WaitMonitor.unblock(this);
+			}
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		/**
+		 * Test if this task has finished.
+		 * 
+		 * @return <tt>true</tt> if this task has finished.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Return the worker running this task, or <tt>null</tt> if it is not
+		 * running.
+		 */
+		KThread getWorker() {
+			return done ? null : worker;
+		}
+
+		/**
+		 * Called by the specified worker when it takes this task. Threads that
+		 * joined the task while it was pending move to <tt>joinQueue</tt>, where
+		 * they donate to the worker.
+		 */
+		private void start(KThread thread) {
+			worker = thread;
+			joinQueue.acquire(worker);
+
+			KThread joiner;
+			while ((joiner = startQueue.nextThread()) != null)
+				joinQueue.waitForAccess(joiner);
+		}
+
+		/**
+		 * Called by the worker when the task's <tt>run()</tt> method returns.
+		 */
+		private void finish() {
+			done = true;
+
+			KThread joiner;
+			while ((joiner = joinQueue.nextThread()) != null)
+				joiner.ready();
+		}
+
+		private Runnable target;
+
+		private KThread worker = null;
+
+		private boolean done = false;
+
+		/** Threads joining this task before a worker has taken it. */
+		private ThreadQueue startQueue = ThreadedKernel.scheduler
+				.newThreadQueue(false);
+
+		/** Threads joining this task while it runs; owned by the worker. */
+		private ThreadQueue joinQueue = ThreadedKernel.scheduler
+				.newThreadQueue(true);
+	}
+
+	private int maxWorkers;
+
+	private int numWorkers = 0;
+
+	/** Tasks waiting for a worker, in the order they were submitted. */
+	private LinkedList<Task> pending = new LinkedList<Task>();
+
+	/** Workers sleeping until a task is submitted. */
+	private ThreadQueue idleWorkers = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
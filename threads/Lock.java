@@ -36,8 +36,12 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			if (WaitMonitor.enabled)
+				WaitMonitor.block(this);
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
+			if (WaitMonitor.enabled)
+				WaitMonitor.unblock(this);
 		}
 		else {
 			waitQueue.acquire(thread);
@@ -50,6 +54,44 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically acquire this lock, giving up after at least <i>ticks</i> clock
+	 * ticks. The current thread must not already hold this lock.
+	 * 
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the lock was acquired, <tt>false</tt> if the
+	 * wait timed out.
+	 */
+	public boolean tryAcquire(long ticks) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+		boolean acquired = true;
+
+		if (lockHolder == null) {
+			waitQueue.acquire(thread);
+
+			lockHolder = thread;
+		}
+		else if (ticks <= 0) {
+			acquired = false;
+		}
+		else {
+			if (WaitMonitor.enabled)
+				WaitMonitor.block(this);
+			waitQueue.waitForAccess(thread);
+			acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+			if (WaitMonitor.enabled)
+				WaitMonitor.unblock(this);
+		}
+
+		Lib.assertTrue(acquired == (lockHolder == thread));
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -73,6 +115,13 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Return the thread holding this lock, or <tt>null</tt> if it is free.
+	 */
+	KThread getHolder() {
+		return lockHolder;
+	}
+
 	private KThread lockHolder = null;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
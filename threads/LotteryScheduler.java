@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  * 
@@ -41,7 +37,461 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= ticketsMinimum && priority <= ticketsMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == ticketsMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Return the number of lotteries the specified thread has won, on any
+	 * queue. Useful for checking that threads are served in proportion to
+	 * their tickets.
+	 * 
+	 * @param thread the thread whose wins to return.
+	 * @return the number of times the thread was chosen by
+	 * <tt>nextThread()</tt>.
+	 */
+	public long getWins(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return ((LotteryThreadState) getThreadState(thread)).wins;
+	}
+
+	/**
+	 * The minimum number of tickets a thread can hold.
+	 */
+	public static final int ticketsMinimum = 1;
+
+	/**
+	 * The maximum number of tickets a thread can hold. With donation, the
+	 * effective number of tickets can be larger; it is reported capped at this
+	 * value.
+	 */
+	public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot, and a Fenwick tree over the slots
+	 * holds their effective ticket counts, so both drawing the winner and
+	 * changing a thread's tickets take O(log n) time. Slots freed by departing
+	 * threads are reused, and the tree doubles in size when it fills up.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			((LotteryThreadState) getThreadState(thread)).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			((LotteryThreadState) getThreadState(thread)).acquire(this);
+		}
+
+		/**
+		 * The specified thread has given up access. A queue donates only to
+		 * the thread that acquired it last, so this matters only if that is
+		 * the specified thread.
+		 */
+		public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (owner != null && owner.thread == thread)
+				setOwner(null);
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			return ((LotteryThreadState) getThreadState(thread)).remove(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryThreadState state = pickNextThread();
+			if (state == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(state);
+			state.waitQueue = null;
+			state.wins++;
+			state.acquire(this);
+
+			return state.thread;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, without modifying the
+		 * state of this queue.
+		 * 
+		 * @return the winner, or <tt>null</tt> if no thread is waiting.
+		 */
+		protected LotteryThreadState pickNextThread() {
+			if (total == 0)
+				return null;
+
+			long ticket;
+			if (total <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) total);
+			else
+				ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+			// find the slot whose ticket range contains the winning ticket
+			int index = 0;
+			for (int step = capacity; step > 0; step >>= 1) {
+				if (index + step <= capacity && tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			return slots[index + 1];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 1; i <= capacity; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ");
+			}
+		}
+
+		/**
+		 * Give a slot to the specified thread and add its tickets to the
+		 * lottery.
+		 */
+		void add(LotteryThreadState state) {
+			if (numFree == 0)
+				grow();
+
+			int slot = freeSlots[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+
+			adjust(slot, state.effectiveTickets);
+		}
+
+		/**
+		 * Take the specified thread's tickets out of the lottery and free its
+		 * slot.
+		 */
+		void remove(LotteryThreadState state) {
+			int slot = state.slot;
+
+			adjust(slot, -state.effectiveTickets);
+
+			slots[slot] = null;
+			freeSlots[numFree++] = slot;
+		}
+
+		/**
+		 * Add <tt>delta</tt> tickets to the specified slot.
+		 */
+		void adjust(int slot, long delta) {
+			total += delta;
+			for (int i = slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree in linear time.
+		 */
+		private void grow() {
+			int newCapacity = (capacity == 0) ? 4 : capacity * 2;
+
+			LotteryThreadState[] newSlots = new LotteryThreadState[newCapacity + 1];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+
+			long[] newTree = new long[newCapacity + 1];
+			for (int i = 1; i <= newCapacity; i++) {
+				if (newSlots[i] != null)
+					newTree[i] += newSlots[i].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= newCapacity)
+					newTree[parent] += newTree[i];
+			}
+
+			int[] newFree = new int[newCapacity];
+			for (int slot = newCapacity; slot > capacity; slot--)
+				newFree[numFree++] = slot;
+
+			slots = newSlots;
+			tree = newTree;
+			freeSlots = newFree;
+			capacity = newCapacity;
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, withdrawing the
+		 * tickets this queue donated to the previous owner.
+		 */
+		void setOwner(LotteryThreadState state) {
+			if (!transferPriority)
+				return;
+
+			if (owner != null) {
+				LotteryThreadState previous = owner;
+				long tickets = donated;
+				owner = null;
+				donated = 0;
+				previous.adjustTickets(-tickets);
+			}
+
+			if (state != null) {
+				owner = state;
+				donated = total;
+				state.adjustTickets(total);
+			}
+		}
+
+		/**
+		 * Pass a change of <tt>delta</tt> tickets in this queue on to its
+		 * owner, unless the owner was already visited by the current walk.
+		 * 
+		 * @return the owner, if it must be updated in turn, or <tt>null</tt>.
+		 */
+		LotteryThreadState donate(long delta, long stamp) {
+			if (!transferPriority || owner == null || owner.visited == stamp)
+				return null;
+
+			donated += delta;
+			return owner;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The total number of tickets held by waiting threads. */
+		private long total = 0;
+
+		/** The number of slots; always zero or a power of two. */
+		private int capacity = 0;
+
+		/** The Fenwick tree over slot ticket counts, indexed from 1. */
+		private long[] tree = new long[1];
+
+		/** The thread waiting in each slot, indexed from 1. */
+		private LotteryThreadState[] slots = new LotteryThreadState[1];
+
+		/** A stack of the slots that are not in use. */
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+
+		/** The thread that last acquired this queue, if it transfers tickets. */
+		private LotteryThreadState owner = null;
+
+		/** The tickets currently donated to <tt>owner</tt>. */
+		private long donated = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler. The priority
+	 * is the number of tickets the thread holds itself; the effective ticket
+	 * count adds the tickets donated by every owned queue that transfers
+	 * tickets.
+	 * 
+	 * <p>
+	 * A change in a thread's tickets is passed along the chain of queue owners
+	 * as a delta, at O(log n) per link. Each walk stamps the threads it visits
+	 * so that a deadlock cycle ends it instead of donating forever.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * capped at <tt>ticketsMaximum</tt>.
+		 * 
+		 * @return the effective number of tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, ticketsMaximum);
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 * 
+		 * <p>
+		 * This is first called from the <tt>ThreadState</tt> constructor,
+		 * before the fields of this class are initialized, so those fields
+		 * must not have initializers.
+		 * 
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			if (this.priority == priority)
+				return;
+
+			long delta = (long) priority - this.priority;
+			this.priority = priority;
+
+			adjustTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on the specified
+		 * lottery queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+
+			LotteryThreadState owner = waitQueue.donate(effectiveTickets,
+					++walkStamp);
+			if (owner != null)
+				owner.adjustTickets(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue the associated thread now owns.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Called when the associated thread stops waiting on the specified
+		 * queue without acquiring it.
+		 * 
+		 * @param waitQueue the queue to leave.
+		 * @return <tt>true</tt> if the thread was waiting on the queue.
+		 */
+		public boolean remove(LotteryQueue waitQueue) {
+			if (this.waitQueue != waitQueue)
+				return false;
+
+			waitQueue.remove(this);
+			this.waitQueue = null;
+
+			LotteryThreadState owner = waitQueue.donate(-effectiveTickets,
+					++walkStamp);
+			if (owner != null)
+				owner.adjustTickets(-effectiveTickets);
+
+			return true;
+		}
+
+		/**
+		 * Add <tt>delta</tt> to the effective tickets of the associated
+		 * thread, and pass the change on to the owners of the queues it waits
+		 * on.
+		 */
+		void adjustTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			long stamp = ++walkStamp;
+
+			LotteryThreadState state = this;
+			while (state != null) {
+				state.visited = stamp;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitQueue;
+				if (queue == null)
+					return;
+
+				queue.adjust(state.slot, delta);
+				state = queue.donate(delta, stamp);
+			}
+		}
+
+		/** The own tickets plus all donated tickets. */
+		long effectiveTickets;
+
+		/** The number of lotteries this thread has won. */
+		long wins;
+
+		/** The queue the associated thread is waiting on, if any. */
+		LotteryQueue waitQueue;
+
+		/** The slot this thread occupies in <tt>waitQueue</tt>. */
+		int slot;
+
+		/** The stamp of the last walk that visited this thread. */
+		long visited;
 	}
+
+	/** The stamp of the most recent donation walk. */
+	private long walkStamp = 0;
 }
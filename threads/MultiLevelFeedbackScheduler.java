@@ -0,0 +1,364 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept at one of several
+ * levels, level 0 being the most favoured, and the next thread is always taken
+ * from the highest non-empty level, first-come first-served within a level.
+ * 
+ * <p>
+ * Every thread starts at level 0. The processor time a thread uses is charged
+ * against the allotment of its level, which doubles from one level to the
+ * next. A thread that uses up its allotment, typically across several timer
+ * interrupts, moves down a level. A thread that is put back on the ready
+ * queue by another thread, because it was woken from a <tt>Semaphore</tt>,
+ * <tt>Lock</tt> or <tt>Alarm</tt>, moves up a level. So threads that mostly
+ * wait for I/O stay near the top, while CPU-bound threads sink. To prevent
+ * starvation, every thread is periodically boosted back to level 0.
+ * 
+ * <p>
+ * The queue used for the processor is the one that is acquired without
+ * transferring priority (see <tt>Scheduler.newThreadQueue()</tt>); it is the
+ * only queue that charges processor time and triggers boosts. Other queues
+ * simply order their waiters by level. Priority is never transferred.
+ * 
+ * <p>
+ * The number of levels, the allotment of level 0 and the boost interval, all
+ * in timer ticks, are read from <tt>MultiLevelFeedbackScheduler.levels</tt>,
+ * <tt>MultiLevelFeedbackScheduler.quantum</tt> and
+ * <tt>MultiLevelFeedbackScheduler.boostInterval</tt>.
+ */
+public class MultiLevelFeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MultiLevelFeedbackScheduler() {
+		levels = Config.getInteger("MultiLevelFeedbackScheduler.levels", 4);
+		Lib.assertTrue(levels >= 1 && levels <= 31);
+
+		int quantum = Config.getInteger("MultiLevelFeedbackScheduler.quantum", 1000);
+		Lib.assertTrue(quantum > 0);
+
+		quanta = new long[levels];
+		for (int i = 0; i < levels; i++)
+			quanta[i] = (long) quantum << i;
+
+		boostInterval = Config.getInteger(
+				"MultiLevelFeedbackScheduler.boostInterval", 50000);
+		Lib.assertTrue(boostInterval > 0);
+
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 * 
+	 * @param transferPriority <tt>true</tt> if this queue guards a resource
+	 * with an owner; such a queue is never the processor queue.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new LevelQueue(transferPriority);
+	}
+
+	/**
+	 * Return the priority of the specified thread, which is higher for threads
+	 * at more favoured levels.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return levels - 1 - getThreadState(thread).level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Move the specified thread to the level matching the specified priority,
+	 * with a fresh allotment.
+	 */
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= 0 && priority < levels);
+
+		ThreadState state = getThreadState(thread);
+		LevelQueue waitQueue = state.waitQueue;
+
+		if (waitQueue != null)
+			waitQueue.remove(state);
+
+		state.level = levels - 1 - priority;
+		state.used = 0;
+
+		if (waitQueue != null)
+			waitQueue.add(state);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == levels - 1)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == 0)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread, first applying any
+	 * boost it missed while it was not on the processor queue.
+	 */
+	private ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		if (state.epoch != boostEpoch && state.waitQueue == null) {
+			state.epoch = boostEpoch;
+			state.level = 0;
+			state.used = 0;
+		}
+
+		return state;
+	}
+
+	/**
+	 * Charge the processor time used by the specified thread since it was
+	 * last charged, and move it down a level if its allotment is used up.
+	 */
+	private void charge(ThreadState state, long now) {
+		state.used += now - state.dispatchTime;
+		state.dispatchTime = now;
+
+		if (state.used >= quanta[state.level]) {
+			if (state.level < levels - 1)
+				state.level++;
+			state.used = 0;
+		}
+	}
+
+	/**
+	 * A queue of threads ordered by level. Each level is a FIFO list threaded
+	 * through the <tt>ThreadState</tt> objects, and a bitmap records which
+	 * levels are non-empty.
+	 */
+	private class LevelQueue extends ThreadQueue {
+		LevelQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+
+			if (thread == KThread.currentThread()) {
+				// giving up the processor, by yielding or by blocking
+				charge(state, Machine.timer().getTime());
+			}
+			else if (processorQueue && state.level > 0) {
+				// woken up by another thread
+				state.level--;
+				state.used = 0;
+			}
+
+			add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (processorQueue) {
+				long now = Machine.timer().getTime();
+
+				// a yielding thread was already charged when it was queued
+				ThreadState current = getThreadState(KThread.currentThread());
+				if (current.waitQueue == null)
+					charge(current, now);
+
+				if (now >= nextBoost)
+					boost(now);
+			}
+
+			if (nonEmpty == 0)
+				return null;
+
+			ThreadState state = heads[Integer.numberOfTrailingZeros(nonEmpty)];
+			remove(state);
+
+			if (processorQueue)
+				state.dispatchTime = Machine.timer().getTime();
+
+			return state.thread;
+		}
+
+		/**
+		 * The specified thread has received access without waiting. Acquiring
+		 * a queue that does not transfer priority marks it as the processor
+		 * queue, and the thread as running.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(nonEmpty == 0);
+
+			if (!transferPriority) {
+				processorQueue = true;
+				getThreadState(thread).dispatchTime = Machine.timer().getTime();
+			}
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = (ThreadState) thread.schedulingState;
+			if (state == null || state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < levels; level++) {
+				for (ThreadState state = heads[level]; state != null; state = state.next)
+					System.out.print(state.thread + " ");
+			}
+		}
+
+		/**
+		 * Move every waiting thread to level 0, keeping the order of the
+		 * levels, and start a new boost epoch so that threads not waiting here
+		 * are boosted when next seen.
+		 */
+		private void boost(long now) {
+			boostEpoch++;
+			nextBoost = now + boostInterval;
+
+			for (int level = 1; level < levels; level++) {
+				ThreadState state;
+				while ((state = heads[level]) != null) {
+					remove(state);
+					state.level = 0;
+					state.used = 0;
+					state.epoch = boostEpoch;
+					add(state);
+				}
+			}
+		}
+
+		private void add(ThreadState state) {
+			int level = state.level;
+
+			state.waitQueue = this;
+			state.next = null;
+			state.prev = tails[level];
+			if (tails[level] == null)
+				heads[level] = state;
+			else
+				tails[level].next = state;
+			tails[level] = state;
+
+			nonEmpty |= 1 << level;
+		}
+
+		private void remove(ThreadState state) {
+			int level = state.level;
+
+			if (state.prev == null)
+				heads[level] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tails[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+			state.prev = state.next = null;
+			state.waitQueue = null;
+
+			if (heads[level] == null)
+				nonEmpty &= ~(1 << level);
+		}
+
+		private boolean transferPriority;
+
+		private boolean processorQueue = false;
+
+		private ThreadState[] heads = new ThreadState[levels];
+
+		private ThreadState[] tails = new ThreadState[levels];
+
+		/** Bit <i>i</i> is set if and only if level <i>i</i> is non-empty. */
+		private int nonEmpty = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, the processor time charged
+	 * against the allotment of that level, and its place in a queue.
+	 */
+	private class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+			this.epoch = boostEpoch;
+		}
+
+		private KThread thread;
+
+		/** The current level; 0 is the most favoured. */
+		private int level = 0;
+
+		/** Processor time charged at the current level. */
+		private long used = 0;
+
+		/** The time the thread was last dispatched or charged. */
+		private long dispatchTime = 0;
+
+		/** The boost epoch this state was last brought up to date in. */
+		private int epoch;
+
+		/** The queue this thread is waiting on, if any. */
+		private LevelQueue waitQueue = null;
+
+		private ThreadState prev = null, next = null;
+	}
+
+	private int levels;
+
+	/** The allotment of each level, in ticks. */
+	private long[] quanta;
+
+	private long boostInterval;
+
+	private long nextBoost;
+
+	private int boostEpoch = 0;
+}
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -24,7 +22,9 @@ import java.util.Iterator;
  * 
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
- * particular, priority must be donated through locks, and through joins.
+ * particular, priority must be donated through locks, and through joins. A
+ * queue may have several owners at once, as with the readers holding a
+ * <tt>ReadWriteLock</tt>, in which case every owner receives the donation.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -127,6 +127,15 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one FIFO bucket per effective priority, and a
+	 * bitmap records which buckets are non-empty, so the next thread is found
+	 * in constant time. A thread whose effective priority changes while it
+	 * waits moves to its new bucket at the place its arrival time gives it.
+	 * The buckets are intrusive lists threaded through the
+	 * <tt>ThreadState</tt> objects, which is possible because a thread waits
+	 * on at most one queue at a time.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -138,15 +147,40 @@ public class PriorityScheduler extends Scheduler {
 			getThreadState(thread).waitForAccess(this);
 		}
 
+		/**
+		 * The specified thread has received access without waiting. It becomes
+		 * an owner of this queue alongside any existing owners.
+		 */
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			getThreadState(thread).acquire(this);
 		}
 
+		public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			removeOwner(getThreadState(thread));
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			return getThreadState(thread).remove(this);
+		}
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState state = pickNextThread();
+
+			// the returned thread, if any, becomes the only owner
+			clearOwners();
+			if (state == null)
+				return null;
+
+			remove(state);
+			state.waitingOn = null;
+			state.acquire(this);
+
+			return state.thread;
 		}
 
 		/**
@@ -156,13 +190,171 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (nonEmpty == 0)
+				return null;
+
+			return heads[topLevel()];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int level = priorityMaximum; level >= priorityMinimum;
+					level--) {
+				for (ThreadState state = heads[level]; state != null;
+						state = state.next)
+					System.out.print(state.thread + " ");
+			}
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread, or -1 if
+		 * no thread is waiting.
+		 */
+		int topLevel() {
+			return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+		}
+
+		/**
+		 * Append a newly waiting thread to the bucket for its effective
+		 * priority.
+		 */
+		void add(ThreadState state) {
+			state.queuedSeq = nextSeq++;
+			insert(state);
+		}
+
+		/**
+		 * Move a waiting thread to the bucket for its new effective priority,
+		 * keeping its place among the threads that arrived before and after
+		 * it.
+		 */
+		void move(ThreadState state) {
+			remove(state);
+			insert(state);
+		}
+
+		/**
+		 * Link a thread into the bucket for its effective priority, behind
+		 * every thread that arrived before it.
+		 */
+		private void insert(ThreadState state) {
+			int level = state.effectivePriority;
+
+			ThreadState prev = tails[level];
+			while (prev != null && prev.queuedSeq > state.queuedSeq)
+				prev = prev.prev;
+
+			state.queuedLevel = level;
+			state.prev = prev;
+			if (prev == null) {
+				state.next = heads[level];
+				heads[level] = state;
+			}
+			else {
+				state.next = prev.next;
+				prev.next = state;
+			}
+			if (state.next == null)
+				tails[level] = state;
+			else
+				state.next.prev = state;
+
+			nonEmpty |= 1 << level;
+		}
+
+		/**
+		 * Unlink a thread from the bucket it was last added to.
+		 */
+		void remove(ThreadState state) {
+			int level = state.queuedLevel;
+
+			if (state.prev == null)
+				heads[level] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tails[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+			state.prev = state.next = null;
+
+			if (heads[level] == null)
+				nonEmpty &= ~(1 << level);
+		}
+
+		/**
+		 * Add the specified thread to the owners of this queue, donating the
+		 * highest waiting level to it.
+		 */
+		void addOwner(ThreadState state) {
+			if (!transferPriority || owners.contains(state))
+				return;
+
+			if (owners.isEmpty())
+				donatedLevel = topLevel();
+
+			owners.add(state);
+			state.addDonation(donatedLevel);
+			state.updateEffectivePriority();
+		}
+
+		/**
+		 * Remove the specified thread from the owners of this queue,
+		 * withdrawing the donation this queue made to it.
+		 */
+		void removeOwner(ThreadState state) {
+			if (!transferPriority || !owners.remove(state))
+				return;
+
+			int level = donatedLevel;
+			if (owners.isEmpty())
+				donatedLevel = -1;
+
+			state.removeDonation(level);
+			state.updateEffectivePriority();
+		}
+
+		/**
+		 * Remove every owner of this queue.
+		 */
+		void clearOwners() {
+			while (!owners.isEmpty())
+				removeOwner(owners.get(owners.size() - 1));
+		}
+
+		/**
+		 * Bring the donation this queue makes to its owners up to date after
+		 * the set of waiting threads changed. A sole owner is returned so that
+		 * the caller can continue its walk; with several owners, each one's
+		 * effective priority is recomputed here.
+		 * 
+		 * @return the owner, if there is exactly one and its donation changed
+		 * so that its effective priority must be recomputed, or <tt>null</tt>
+		 * otherwise.
+		 */
+		ThreadState updateDonation() {
+			if (!transferPriority || owners.isEmpty())
+				return null;
+
+			int level = topLevel();
+			if (level == donatedLevel)
+				return null;
+
+			for (int i = 0; i < owners.size(); i++) {
+				ThreadState owner = owners.get(i);
+				owner.removeDonation(donatedLevel);
+				owner.addDonation(level);
+			}
+			donatedLevel = level;
+
+			if (owners.size() == 1)
+				return owners.get(0);
+
+			for (int i = 0; i < owners.size(); i++)
+				owners.get(i).updateEffectivePriority();
+
+			return null;
 		}
 
 		/**
@@ -170,6 +362,24 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The heads of the per-priority FIFO buckets. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+
+		/** The tails of the per-priority FIFO buckets. */
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+
+		/** Bit <i>i</i> is set if and only if bucket <i>i</i> is non-empty. */
+		private int nonEmpty = 0;
+
+		/** The threads that hold this queue, if it transfers priority. */
+		private ArrayList<ThreadState> owners = new ArrayList<ThreadState>(1);
+
+		/** The level currently donated to each of <tt>owners</tt>, or -1. */
+		private int donatedLevel = -1;
+
+		/** The arrival number to give the next thread that waits. */
+		private long nextSeq = 0;
 	}
 
 	/**
@@ -177,6 +387,15 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is kept up to date rather than recomputed on
+	 * demand. Every owned queue that transfers priority donates its highest
+	 * waiting level, and <tt>donations</tt> counts the donations at each level,
+	 * so the effective priority is the larger of the thread's own priority and
+	 * the highest donated level. A change is pushed along the chain of queue
+	 * owners, one constant-time step per link, until it stops making a
+	 * difference.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -207,8 +426,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +440,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +456,12 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+
+			propagate(waitQueue.updateDonation());
 		}
 
 		/**
@@ -252,7 +475,74 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.addOwner(this);
+		}
+
+		/**
+		 * Called when the associated thread stops waiting on the specified
+		 * queue without acquiring it.
+		 * 
+		 * @param waitQueue the queue to leave.
+		 * @return <tt>true</tt> if the thread was waiting on the queue.
+		 */
+		public boolean remove(PriorityQueue waitQueue) {
+			if (waitingOn != waitQueue)
+				return false;
+
+			waitQueue.remove(this);
+			waitingOn = null;
+
+			propagate(waitQueue.updateDonation());
+			return true;
+		}
+
+		/**
+		 * Count a donation at the specified level, which may be -1 for an
+		 * owned queue with no waiters.
+		 */
+		void addDonation(int level) {
+			if (level >= 0 && donations[level]++ == 0)
+				donationMask |= 1 << level;
+		}
+
+		/**
+		 * Withdraw a donation previously counted by <tt>addDonation()</tt>.
+		 */
+		void removeDonation(int level) {
+			if (level >= 0 && --donations[level] == 0)
+				donationMask &= ~(1 << level);
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread, and pass
+		 * any change on to the owners of the queues it waits on.
+		 */
+		void updateEffectivePriority() {
+			propagate(this);
+		}
+
+		/**
+		 * Walk the donation chain starting at the specified thread, refreshing
+		 * each effective priority and the donation it makes, until nothing
+		 * changes.
+		 */
+		private void propagate(ThreadState state) {
+			while (state != null) {
+				int effective = Math.max(state.priority,
+						31 - Integer.numberOfLeadingZeros(state.donationMask));
+				if (effective == state.effectivePriority)
+					return;
+
+				state.effectivePriority = effective;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.move(state);
+
+				state = queue.updateDonation();
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +550,26 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		private PriorityQueue waitingOn = null;
+
+		/** The bucket this thread was last added to in <tt>waitingOn</tt>. */
+		private int queuedLevel;
+
+		/** When this thread began to wait on <tt>waitingOn</tt>. */
+		private long queuedSeq;
+
+		/** The neighbours of this thread in its bucket. */
+		private ThreadState prev = null, next = null;
+
+		/** The number of owned queues donating at each priority level. */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** Bit <i>i</i> is set if <tt>donations[i]</tt> is non-zero. */
+		private int donationMask = 0;
 	}
 }
@@ -0,0 +1,170 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held either by any number of readers at
+ * once, or by a single writer. There are four operations:
+ * 
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds or is
+ * waiting for the lock, then become one of its readers.
+ * <li><tt>releaseRead()</tt>: stop being a reader, handing the lock to a
+ * waiting writer if this was the last reader.
+ * <li><tt>acquireWrite()</tt>: atomically wait until nobody holds the lock,
+ * then hold it as its writer.
+ * <li><tt>releaseWrite()</tt>: release the lock, handing it to a waiting
+ * writer if there is one, and otherwise to every waiting reader.
+ * </ul>
+ * 
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind it,
+ * so a steady stream of readers cannot starve writers. Waiting writers donate
+ * priority to every thread holding the lock, so a high-priority writer blocked
+ * behind several low-priority readers lifts all of them until they are done.
+ * Waiting readers do not donate.
+ * 
+ * <p>
+ * Only a thread holding the lock may release it, and a thread must not
+ * acquire a lock it already holds.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Atomically acquire this lock for reading.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && waitingWriters == 0) {
+			readers++;
+			writeQueue.acquire(thread);
+		}
+		else {
+			readQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == null && readers > 0);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock, which the current thread holds for
+	 * reading.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(writer == null && readers > 0);
+
+		readers--;
+		writeQueue.release(KThread.currentThread());
+
+		if (readers == 0 && waitingWriters > 0)
+			grantWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically acquire this lock for writing.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && readers == 0) {
+			writer = thread;
+			writeQueue.acquire(thread);
+		}
+		else {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock, which the current thread holds for
+	 * writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+
+		if (waitingWriters > 0) {
+			grantWriter();
+		}
+		else {
+			writeQueue.release(KThread.currentThread());
+
+			KThread thread;
+			while ((thread = readQueue.nextThread()) != null) {
+				readers++;
+				writeQueue.acquire(thread);
+				thread.ready();
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 * 
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	/**
+	 * Hand the lock to the next waiting writer. Nobody may hold the lock.
+	 */
+	private void grantWriter() {
+		writer = writeQueue.nextThread();
+		Lib.assertTrue(writer != null);
+
+		waitingWriters--;
+		writer.ready();
+	}
+
+	/** The thread holding this lock for writing, if any. */
+	private KThread writer = null;
+
+	/** The number of threads holding this lock for reading. */
+	private int readers = 0;
+
+	/** The number of threads waiting on <tt>writeQueue</tt>. */
+	private int waitingWriters = 0;
+
+	/**
+	 * Writers wait on this queue, which is held by every thread holding the
+	 * lock.
+	 */
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	/** Readers wait on this queue while the lock is unavailable to them. */
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -0,0 +1,249 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Measures how the scheduler treats threads, so that schedulers can be
+ * compared under the same load.
+ * 
+ * <p>
+ * <tt>KThread</tt> reports each thread it puts on the ready queue and each
+ * thread it dispatches. From these the metrics record, for each thread, the
+ * processor time it used and the <i>ready latency</i> of each dispatch: the
+ * time from being put on the ready queue to running. Latencies are kept in a
+ * histogram with one bucket per power of two ticks. The length of the ready
+ * queue is averaged over time, and the number of context switches is counted.
+ * Everything is printed when the machine halts.
+ * 
+ * <p>
+ * The metrics are off unless <tt>ThreadedKernel.schedulerMetrics</tt> is set.
+ * When they are off, each ready and dispatch pays one test of a static field.
+ */
+public class SchedulerMetrics {
+	private SchedulerMetrics() {
+	}
+
+	/**
+	 * Start measuring, and arrange for the results to be printed when the
+	 * machine halts.
+	 */
+	public static void enable() {
+		if (enabled)
+			return;
+
+		enabled = true;
+		lastQueueChange = Machine.timer().getTime();
+
+		Machine.addHaltHandler(new Runnable() {
+			public void run() {
+				print();
+			}
+		});
+	}
+
+	/**
+	 * Called when the specified thread is put on the ready queue. Interrupts
+	 * must be disabled.
+	 * 
+	 * @param thread the thread made ready.
+	 * @param queueLength the length of the ready queue, including the thread.
+	 */
+	static void ready(KThread thread, int queueLength) {
+		long now = Machine.timer().getTime();
+
+		getMetrics(thread).readyTime = now;
+		queueChanged(now, queueLength);
+	}
+
+	/**
+	 * Called when the scheduler has chosen the thread to run next. Interrupts
+	 * must be disabled.
+	 * 
+	 * @param previous the thread giving up the processor.
+	 * @param next the thread to run next, which may be <i>previous</i>.
+	 * @param queueLength the length of the ready queue, without <i>next</i>.
+	 */
+	static void dispatch(KThread previous, KThread next, int queueLength) {
+		long now = Machine.timer().getTime();
+
+		queueChanged(now, queueLength);
+
+		ThreadMetrics metrics = getMetrics(next);
+		if (metrics.readyTime >= 0) {
+			long latency = now - metrics.readyTime;
+			metrics.readyTime = -1;
+
+			metrics.dispatches++;
+			metrics.latencyTicks += latency;
+			metrics.maxLatency = Math.max(metrics.maxLatency, latency);
+
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(latency),
+					numBuckets - 1);
+			metrics.histogram[bucket]++;
+			histogram[bucket]++;
+		}
+
+		if (next == previous)
+			return;
+
+		numSwitches++;
+
+		ThreadMetrics running = getMetrics(previous);
+		running.cpuTicks += now - running.dispatchTime;
+		metrics.dispatchTime = now;
+	}
+
+	private static ThreadMetrics getMetrics(KThread thread) {
+		ThreadMetrics metrics = threads.get(thread);
+		if (metrics == null) {
+			metrics = new ThreadMetrics(thread);
+			threads.put(thread, metrics);
+		}
+
+		return metrics;
+	}
+
+	/**
+	 * Account for the time the ready queue spent at its previous length.
+	 */
+	private static void queueChanged(long now, int queueLength) {
+		queueTicks += (long) currentQueueLength * (now - lastQueueChange);
+		lastQueueChange = now;
+
+		currentQueueLength = queueLength;
+		maxQueueLength = Math.max(maxQueueLength, queueLength);
+	}
+
+	/**
+	 * Print the metrics gathered so far.
+	 */
+	private static void print() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long now = Machine.timer().getTime();
+		queueChanged(now, currentQueueLength);
+
+		ThreadMetrics running = getMetrics(KThread.currentThread());
+		running.cpuTicks += now - running.dispatchTime;
+		running.dispatchTime = now;
+
+		long dispatches = 0, latencyTicks = 0, maxLatency = 0;
+		for (Iterator<ThreadMetrics> i = threads.values().iterator(); i
+				.hasNext();) {
+			ThreadMetrics metrics = i.next();
+			dispatches += metrics.dispatches;
+			latencyTicks += metrics.latencyTicks;
+			maxLatency = Math.max(maxLatency, metrics.maxLatency);
+		}
+
+		System.out.println("Scheduler metrics:");
+		System.out.println("  context switches " + numSwitches + ", "
+				+ ratio(numSwitches * 1000, now) + " per 1000 ticks");
+		System.out.println("  ready queue: mean length "
+				+ ratio(queueTicks, now) + ", max " + maxQueueLength);
+		System.out.println("  ready latency: dispatches " + dispatches
+				+ ", mean " + ratio(latencyTicks, dispatches)
+				+ ", max " + maxLatency);
+		System.out.println("  " + histogramString(histogram));
+
+		for (Iterator<ThreadMetrics> i = threads.values().iterator(); i
+				.hasNext();) {
+			ThreadMetrics metrics = i.next();
+			System.out.println("  " + metrics.thread + ": cpu "
+					+ metrics.cpuTicks + ", dispatches " + metrics.dispatches
+					+ ", mean latency "
+					+ ratio(metrics.latencyTicks, metrics.dispatches)
+					+ ", max " + metrics.maxLatency);
+			System.out.println("    " + histogramString(metrics.histogram));
+		}
+
+		System.out.println();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Format <tt>x / y</tt> with one decimal place.
+	 */
+	private static String ratio(long x, long y) {
+		long tenths = x * 10 / Math.max(y, 1);
+		return (tenths / 10) + "." + (tenths % 10);
+	}
+
+	/**
+	 * Format the non-empty buckets of a latency histogram.
+	 */
+	private static String histogramString(long[] histogram) {
+		StringBuffer buffer = new StringBuffer("latency histogram:");
+
+		for (int i = 0; i < numBuckets; i++) {
+			if (histogram[i] == 0)
+				continue;
+
+			if (i == 0)
+				buffer.append(" 0: ");
+			else if (i == numBuckets - 1)
+				buffer.append(" >=" + (1L << (i - 1)) + ": ");
+			else
+				buffer.append(" <" + (1L << i) + ": ");
+			buffer.append(histogram[i]);
+		}
+
+		return buffer.toString();
+	}
+
+	/**
+	 * The metrics of one thread.
+	 */
+	private static class ThreadMetrics {
+		ThreadMetrics(KThread thread) {
+			this.thread = thread;
+		}
+
+		KThread thread;
+
+		/** When the thread was last made ready, or -1 if it is not ready. */
+		long readyTime = -1;
+
+		/** When the thread last started running. */
+		long dispatchTime = 0;
+
+		long cpuTicks = 0;
+
+		long dispatches = 0;
+
+		long latencyTicks = 0, maxLatency = 0;
+
+		/**
+		 * Bucket 0 counts latencies of 0 ticks, and bucket <i>i</i> those
+		 * from 2<sup><i>i</i>-1</sup> up to 2<sup><i>i</i></sup>.
+		 */
+		long[] histogram = new long[numBuckets];
+	}
+
+	/**
+	 * <tt>true</tt> if the metrics are on. <tt>KThread</tt> tests this before
+	 * calling <tt>ready()</tt> and <tt>dispatch()</tt>.
+	 */
+	static boolean enabled = false;
+
+	/** Latencies of 2<sup>20</sup> ticks or more share the last bucket. */
+	private static final int numBuckets = 22;
+
+	/** The metrics of every thread seen, in the order they were seen. */
+	private static LinkedHashMap<KThread, ThreadMetrics> threads = new LinkedHashMap<KThread, ThreadMetrics>();
+
+	private static long[] histogram = new long[numBuckets];
+
+	private static long numSwitches = 0;
+
+	/** The sum over time of the ready queue length, in thread-ticks. */
+	private static long queueTicks = 0;
+
+	private static long lastQueueChange = 0;
+
+	private static int currentQueueLength = 0, maxQueueLength = 0;
+}
@@ -38,8 +38,12 @@ public class Semaphore {
 		boolean intStatus = Machine.interrupt().disable();
 
 		if (value == 0) {
+			if (WaitMonitor.enabled)
+				WaitMonitor.block(this);
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
+			if (WaitMonitor.enabled)
+				WaitMonitor.unblock(this);
 		}
 		else {
 			value--;
@@ -48,6 +52,37 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically wait for this semaphore to become non-zero and decrement it,
+	 * giving up after at least <i>ticks</i> clock ticks.
+	 * 
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the semaphore was decremented, <tt>false</tt>
+	 * if the wait timed out.
+	 */
+	public boolean tryP(long ticks) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean acquired = true;
+
+		if (value > 0) {
+			value--;
+		}
+		else if (ticks <= 0) {
+			acquired = false;
+		}
+		else {
+			if (WaitMonitor.enabled)
+				WaitMonitor.block(this);
+			waitQueue.waitForAccess(KThread.currentThread());
+			acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+			if (WaitMonitor.enabled)
+				WaitMonitor.unblock(this);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
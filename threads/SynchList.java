@@ -1,25 +1,43 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue. A queue may be bounded, in which case <tt>add()</tt>
+ * blocks and <tt>offer()</tt> fails while the queue is full.
  */
 public class SynchList {
 	/**
-	 * Allocate a new synchronized queue.
+	 * Allocate a new unbounded synchronized queue.
 	 */
 	public SynchList() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Allocate a new synchronized queue that holds at most <i>capacity</i>
+	 * objects.
+	 * 
+	 * @param capacity the maximum number of objects in the queue.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.capacity = capacity;
+
 		list = new LinkedList<Object>();
 		lock = new Lock();
 		listEmpty = new Condition2(lock);
+		listFull = new Condition2(lock);
 	}
 
 	/**
-	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
+	 * Add the specified object to the end of the queue, blocking until there
+	 * is room if necessary. If another thread is waiting in
+	 * <tt>removeFirst()</tt>, it is woken up.
 	 * 
 	 * @param o the object to add. Must not be <tt>null</tt>.
 	 */
@@ -27,9 +45,45 @@ public class SynchList {
 		Lib.assertTrue(o != null);
 
 		lock.acquire();
+
+		boolean waited = false;
+		while (list.size() == capacity) {
+			listFull.sleep();
+			waited = true;
+		}
+
 		list.add(o);
 		listEmpty.wake();
+
+		// a removal wakes only one adder; pass the turn on if there is room
+		if (waited && list.size() < capacity)
+			listFull.wake();
+
+		lock.release();
+	}
+
+	/**
+	 * Add the specified object to the end of the queue if there is room,
+	 * without blocking.
+	 * 
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added, <tt>false</tt> if the
+	 * queue was full.
+	 */
+	public boolean offer(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+
+		boolean added = list.size() < capacity;
+		if (added) {
+			list.add(o);
+			listEmpty.wake();
+		}
+
 		lock.release();
+
+		return added;
 	}
 
 	/**
@@ -44,12 +98,63 @@ public class SynchList {
 		lock.acquire();
 		while (list.isEmpty())
 			listEmpty.sleep();
+		if (list.size() == capacity)
+			listFull.wake();
 		o = list.removeFirst();
 		lock.release();
 
 		return o;
 	}
 
+	/**
+	 * Remove an object from the front of the queue if there is one, without
+	 * blocking.
+	 * 
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue was empty.
+	 */
+	public Object poll() {
+		Object o = null;
+
+		lock.acquire();
+		if (!list.isEmpty()) {
+			if (list.size() == capacity)
+				listFull.wake();
+			o = list.removeFirst();
+		}
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Move up to <i>max</i> objects from the front of the queue to the end of
+	 * <i>c</i>, in order, without blocking. The objects are removed in a
+	 * single critical section.
+	 * 
+	 * @param c the collection to add the objects to.
+	 * @param max the maximum number of objects to move.
+	 * @return the number of objects moved.
+	 */
+	public int drainTo(Collection<Object> c, int max) {
+		Lib.assertTrue(c != null && max >= 0);
+
+		lock.acquire();
+
+		if (list.size() == capacity && max > 0)
+			listFull.wake();
+
+		int n = 0;
+		while (n < max && !list.isEmpty()) {
+			c.add(list.removeFirst());
+			n++;
+		}
+
+		lock.release();
+
+		return n;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -84,7 +189,11 @@ public class SynchList {
 
 	private LinkedList<Object> list;
 
+	private int capacity;
+
 	private Lock lock;
 
 	private Condition2 listEmpty;
+
+	private Condition2 listFull;
 }
@@ -90,6 +90,34 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Notify this thread queue that the specified thread has given up access
+	 * it received through <tt>acquire()</tt> or <tt>nextThread()</tt>, for a
+	 * resource that several threads can hold at once and so is not simply
+	 * passed on by <tt>nextThread()</tt>. A queue that transfers priority stops
+	 * donating to the thread.
+	 * 
+	 * <p>
+	 * The default implementation does nothing, which suits queues that do not
+	 * track who holds them.
+	 * 
+	 * @param thread the thread giving up access.
+	 */
+	public void release(KThread thread) {
+	}
+
+	/**
+	 * Take the specified thread off this queue without giving it access, for
+	 * example because it stopped waiting when a timeout expired. Any priority
+	 * the thread was donating through this queue is withdrawn.
+	 * 
+	 * @param thread the thread to remove.
+	 * @return <tt>true</tt> if the thread was waiting on this queue,
+	 * <tt>false</tt> if it was not (for example because
+	 * <tt>nextThread()</tt> already returned it).
+	 */
+	public abstract boolean remove(KThread thread);
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
@@ -22,6 +22,12 @@ public class ThreadedKernel extends Kernel {
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
 		scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+		// watch blocking waits and scheduling, if asked to
+		if (Config.getBoolean("ThreadedKernel.waitMonitor", false))
+			WaitMonitor.enable();
+		if (Config.getBoolean("ThreadedKernel.schedulerMetrics", false))
+			SchedulerMetrics.enable();
+
 		// set fileSystem
 		String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 		if (fileSystemName != null)
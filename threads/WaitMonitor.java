@@ -0,0 +1,295 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Watches threads block in <tt>Lock</tt>, <tt>Semaphore</tt>,
+ * <tt>Condition</tt>, <tt>Condition2</tt>, <tt>KThread.join()</tt>,
+ * <tt>KThreadPool.Task.join()</tt> and <tt>KFuture.await()</tt>, to find out
+ * where time is spent waiting.
+ * 
+ * <p>
+ * The monitor keeps a wait-for graph: each blocked thread points at the
+ * object it waits on, and a lock, a thread being joined or a running pool
+ * task points at the thread that will release it. When a thread blocks, the
+ * monitor follows the graph from it and reports a deadlock if it comes back
+ * to the same thread.
+ * Semaphores and condition variables have no holder, so they end a path.
+ * 
+ * <p>
+ * If a blocking thread has a higher effective priority than the holder it
+ * waits for, the wait is counted as a priority inversion and its length is
+ * recorded. When the machine halts, the monitor prints the waits per kind of
+ * object, the inversions, the deadlocks, and the threads that are still
+ * blocked. Objects can be given names with <tt>setName()</tt> so that they
+ * are reported on their own.
+ * 
+ * <p>
+ * The monitor is off unless <tt>ThreadedKernel.waitMonitor</tt> is set. When
+ * it is off, each primitive pays one test of a static field per blocking
+ * wait.
+ */
+public class WaitMonitor {
+	private WaitMonitor() {
+	}
+
+	/**
+	 * Turn the monitor on, and arrange for its report to be printed when the
+	 * machine halts.
+	 */
+	public static void enable() {
+		if (enabled)
+			return;
+
+		enabled = true;
+
+		Machine.addHaltHandler(new Runnable() {
+			public void run() {
+				print();
+			}
+		});
+	}
+
+	/**
+	 * Give the specified object a name, under which its waits are reported
+	 * separately from other objects of the same kind.
+	 * 
+	 * @param resource the lock, semaphore or condition variable to name.
+	 * @param name the name to report it under.
+	 */
+	public static void setName(Object resource, String name) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		names.put(resource, name);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Record that the current thread is about to block on the specified
+	 * object. Must be called before the thread starts waiting for access, so
+	 * that the holder's effective priority does not yet include the
+	 * current thread's donation. If the current thread is already recorded
+	 * as blocked, for example because <tt>Condition</tt> waits on a
+	 * semaphore, the outer wait is kept and this call does nothing.
+	 * 
+	 * @param resource the object the current thread is about to wait on.
+	 */
+	static void block(Object resource) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		if (!waits.containsKey(thread)) {
+			Wait wait = new Wait(thread, resource);
+
+			Scheduler scheduler = ThreadedKernel.scheduler;
+			KThread holder = holderOf(resource);
+			if (holder != null
+					&& scheduler.getEffectivePriority(thread) > scheduler
+							.getEffectivePriority(holder)) {
+				wait.inversionHolder = holder;
+			}
+
+			waits.put(thread, wait);
+
+			checkDeadlock(thread);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Record that the current thread has stopped waiting on the specified
+	 * object. Does nothing unless the thread was recorded as blocked on that
+	 * object.
+	 * 
+	 * @param resource the object the current thread was waiting on.
+	 */
+	static void unblock(Object resource) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		Wait wait = waits.get(thread);
+		if (wait != null && wait.resource == resource) {
+			waits.remove(thread);
+
+			long ticks = Machine.timer().getTime() - wait.since;
+
+			long[] counts = waitCounts.get(labelOf(resource));
+			if (counts == null) {
+				counts = new long[3];
+				waitCounts.put(labelOf(resource), counts);
+			}
+			counts[0]++;
+			counts[1] += ticks;
+			counts[2] = Math.max(counts[2], ticks);
+
+			if (wait.inversionHolder != null) {
+				numInversions++;
+				inversionTicks += ticks;
+				if (ticks > maxInversionTicks) {
+					maxInversionTicks = ticks;
+					maxInversion = thread + " behind " + wait.inversionHolder
+							+ " on " + labelOf(resource);
+				}
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the thread that must act before a thread waiting on the
+	 * specified object can continue, or <tt>null</tt> if there is no such
+	 * thread.
+	 */
+	private static KThread holderOf(Object resource) {
+		if (resource instanceof Lock)
+			return ((Lock) resource).getHolder();
+		else if (resource instanceof KThread)
+			return (KThread) resource;
+		else if (resource instanceof KThreadPool.Task)
+			return ((KThreadPool.Task) resource).getWorker();
+		else
+			return null;
+	}
+
+	private static String labelOf(Object resource) {
+		String name = names.get(resource);
+		if (name != null)
+			return name;
+		else if (resource instanceof KThread)
+			return "join";
+		else
+			return resource.getClass().getSimpleName();
+	}
+
+	/**
+	 * Follow the wait-for graph from the specified thread, which has just
+	 * blocked, and report a deadlock if the path leads back to it. Each
+	 * thread waits on at most one object, so the path is a simple chain; it is
+	 * cut short after as many steps as there are blocked threads, in case it
+	 * runs into an older cycle.
+	 */
+	private static void checkDeadlock(KThread thread) {
+		StringBuffer path = new StringBuffer();
+		KThread current = thread;
+
+		for (int steps = waits.size(); steps > 0; steps--) {
+			Wait wait = waits.get(current);
+			if (wait == null)
+				return;
+
+			KThread holder = holderOf(wait.resource);
+			if (holder == null)
+				return;
+
+			path.append(current + " waits on " + labelOf(wait.resource)
+					+ " held by " + holder + "; ");
+
+			if (holder == thread) {
+				numDeadlocks++;
+				String report = "deadlock: "
+						+ path.substring(0, path.length() - 2);
+				System.out.println("WaitMonitor: " + report);
+				if (firstDeadlock == null)
+					firstDeadlock = report;
+				return;
+			}
+
+			current = holder;
+		}
+	}
+
+	/**
+	 * Print the statistics gathered so far.
+	 */
+	private static void print() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long now = Machine.timer().getTime();
+
+		System.out.println("Wait monitor:");
+
+		for (Iterator<Map.Entry<String, long[]>> i = waitCounts.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<String, long[]> entry = i.next();
+			long[] counts = entry.getValue();
+			System.out.println("  " + entry.getKey() + ": waits " + counts[0]
+					+ ", ticks " + counts[1] + ", max " + counts[2]);
+		}
+
+		System.out.print("  inversions " + numInversions + ", ticks "
+				+ inversionTicks + ", max " + maxInversionTicks);
+		if (maxInversion != null)
+			System.out.print(" (" + maxInversion + ")");
+		System.out.println();
+
+		System.out.println("  deadlocks " + numDeadlocks);
+		if (numDeadlocks > 0)
+			System.out.println("  first " + firstDeadlock);
+
+		for (Iterator<Wait> i = waits.values().iterator(); i.hasNext();) {
+			Wait wait = i.next();
+			System.out.println("  still blocked: " + wait.thread + " on "
+					+ labelOf(wait.resource) + " for " + (now - wait.since)
+					+ " ticks");
+		}
+
+		System.out.println();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * A blocked thread: what it waits on, since when, and the lower-priority
+	 * thread it waits for, if the wait is a priority inversion.
+	 */
+	private static class Wait {
+		Wait(KThread thread, Object resource) {
+			this.thread = thread;
+			this.resource = resource;
+			this.since = Machine.timer().getTime();
+		}
+
+		KThread thread;
+
+		Object resource;
+
+		long since;
+
+		KThread inversionHolder = null;
+	}
+
+	/**
+	 * <tt>true</tt> if the monitor is on. Primitives test this before
+	 * calling <tt>block()</tt> and <tt>unblock()</tt>.
+	 */
+	static boolean enabled = false;
+
+	/** The blocked threads, in the order they blocked. */
+	private static LinkedHashMap<KThread, Wait> waits
+			= new LinkedHashMap<KThread, Wait>();
+
+	private static HashMap<Object, String> names
+			= new HashMap<Object, String>();
+
+	/** Waits, total ticks and longest wait, for each label. */
+	private static LinkedHashMap<String, long[]> waitCounts
+			= new LinkedHashMap<String, long[]>();
+
+	private static int numInversions = 0;
+
+	private static long inversionTicks = 0, maxInversionTicks = 0;
+
+	private static String maxInversion = null;
+
+	private static int numDeadlocks = 0;
+
+	private static String firstDeadlock = null;
+}
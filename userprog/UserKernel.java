@@ -4,6 +4,7 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 
 /**
@@ -147,6 +148,144 @@ public class UserKernel extends ThreadedKernel {
 		freePages.add(pageNumber);
 	}
 
+	/**
+	 * Get the physical page holding a read-only page of a program, loaded by
+	 * another process running the same executable, and add a user to it.
+	 * 
+	 * @param executable the name of the executable.
+	 * @param vpn the page of a read-only section of the executable.
+	 * @return the physical page, or -1 if the page is not in memory.
+	 */
+	public static int getTextPage(String executable, int vpn) {
+		//memoryLock should be held here.
+		HashMap<Integer, Integer> pages = textPages.get(executable);
+		if (pages == null || !pages.containsKey(vpn)) {
+			return -1;
+		}
+
+		int ppn = pages.get(vpn);
+		textUsers.get(ppn).users++;
+		return ppn;
+	}
+
+	/**
+	 * Record that a physical page holds a read-only page of a program, so
+	 * that other processes running it can share the page. Its one user is
+	 * the process that loaded it. Does nothing if another page holding it
+	 * was recorded first.
+	 */
+	public static void addTextPage(String executable, int vpn, int ppn) {
+		//memoryLock should be held here.
+		HashMap<Integer, Integer> pages = textPages.get(executable);
+		if (pages == null) {
+			pages = new HashMap<Integer, Integer>();
+			textPages.put(executable, pages);
+		}
+		if (pages.containsKey(vpn)) {
+			return;
+		}
+
+		pages.put(vpn, ppn);
+		textUsers.put(ppn, new TextPage(executable, vpn));
+	}
+
+	/**
+	 * Add a user to the executable of a process, which a child created by
+	 * <tt>fork()</tt> shares with its parent.
+	 * 
+	 * @param coff the executable.
+	 */
+	public static void shareCoff(Coff coff) {
+		//memoryLock should be held here.
+		Integer users = coffUsers.get(coff);
+		coffUsers.put(coff, users == null ? 2 : users + 1);
+	}
+
+	/**
+	 * Remove a user from the executable of a process.
+	 * 
+	 * @param coff the executable.
+	 * @return <tt>true</tt> if the executable has no users left and can be
+	 * closed, which is always the case for one that is not shared.
+	 */
+	public static boolean releaseCoff(Coff coff) {
+		//memoryLock should be held here.
+		Integer users = coffUsers.get(coff);
+		if (users == null) {
+			return true;
+		}
+
+		if (users == 2) {
+			coffUsers.remove(coff);
+		} else {
+			coffUsers.put(coff, users - 1);
+		}
+		return false;
+	}
+
+	/**
+	 * Add a user to a physical page that a process already uses, such as a
+	 * page a child inherits from its parent. Only a page recorded by
+	 * <tt>addTextPage()</tt> is shared this way.
+	 * 
+	 * @param ppn the physical page.
+	 * @return <tt>true</tt> if the page is a shared read-only page of a
+	 * program and a user was added to it.
+	 */
+	public static boolean addTextPageUser(int ppn) {
+		//memoryLock should be held here.
+		TextPage page = textUsers.get(ppn);
+		if (page == null) {
+			return false;
+		}
+
+		page.users++;
+		return true;
+	}
+
+	/**
+	 * Remove a user from a physical page. A shared read-only page of a
+	 * program is forgotten when its last user is removed.
+	 * 
+	 * @param ppn the physical page.
+	 * @return <tt>true</tt> if the page has no users left and can be freed,
+	 * which is always the case for a page that is not shared.
+	 */
+	public static boolean releaseTextPage(int ppn) {
+		//memoryLock should be held here.
+		TextPage page = textUsers.get(ppn);
+		if (page == null) {
+			return true;
+		}
+		if (--page.users > 0) {
+			return false;
+		}
+
+		//The executable may have been forgotten, or loaded again since.
+		textUsers.remove(ppn);
+		HashMap<Integer, Integer> pages = textPages.get(page.executable);
+		if (pages != null && Integer.valueOf(ppn).equals(pages.get(page.vpn))) {
+			pages.remove(page.vpn);
+			if (pages.isEmpty()) {
+				textPages.remove(page.executable);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stop sharing the read-only pages loaded from an executable, because
+	 * the file was created, written or removed. Processes already using the
+	 * pages keep them, and each page is freed by its last user as before, but
+	 * a process loading the executable from now on reads the file again.
+	 * 
+	 * @param executable the name of the file.
+	 */
+	public static void forgetTextPages(String executable) {
+		//memoryLock should be held here.
+		textPages.remove(executable);
+	}
+
 	/**
 	 * Get the next PID for a new process.
 	 */
@@ -206,6 +345,36 @@ public class UserKernel extends ThreadedKernel {
 	/** A lock used to access the page list synchronically. */
 	public static Lock memoryLock;
 
+	/**
+	 * Read-only pages of programs that are in memory, by executable name and
+	 * vpn, each shared by every process running the executable. The pages of
+	 * a name are forgotten when that file changes, so a name stands for the
+	 * contents of the file when its pages were loaded.
+	 */
+	private static HashMap<String, HashMap<Integer, Integer>> textPages
+			= new HashMap<String, HashMap<Integer, Integer>>();
+
+	/** The users of each executable shared by more than one process. */
+	private static HashMap<Coff, Integer> coffUsers
+			= new HashMap<Coff, Integer>();
+
+	/** The program page held by each shared physical page, and its users. */
+	private static HashMap<Integer, TextPage> textUsers
+			= new HashMap<Integer, TextPage>();
+
+	private static class TextPage {
+		TextPage(String executable, int vpn) {
+			this.executable = executable;
+			this.vpn = vpn;
+		}
+
+		String executable;
+
+		int vpn;
+
+		int users = 1;
+	}
+
 	/** A counter of process IDs. */
 	private static int nextPID = 0;
 
@@ -264,6 +264,7 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "\topen failed");
 			return false;
 		}
+		executableName = name;
 
 		try {
 			coff = new Coff(executable);
@@ -347,8 +348,42 @@ public class UserProcess {
 		//Access global resource--free pages list, acquire the lock
 		UserKernel.memoryLock.acquire();
 
+		if (numPages > pageTable.length) {
+			UserKernel.memoryLock.release();
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+
+		//Read-only pages already loaded by another process running the same
+		//executable are shared with it.
+		int sharedPages = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly()) {
+				continue;
+			}
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				int ppn = UserKernel.getTextPage(executableName, vpn);
+				if (ppn != -1) {
+					pageTable[vpn] = new TranslationEntry(vpn, ppn,
+							true, true, false, false);
+					sharedPages++;
+				}
+			}
+		}
+
 		//Check if there are sufficient free physical pages.
-		if (numPages > UserKernel.freePagesNum()) {
+		if (numPages - sharedPages > UserKernel.freePagesNum()) {
+			for (int i = 0; i < numPages; i++) {
+				if (pageTable[i] != null) {
+					UserKernel.releaseTextPage(pageTable[i].ppn);
+					pageTable[i] = null;
+				}
+			}
+			UserKernel.memoryLock.release();
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
@@ -357,15 +392,16 @@ public class UserProcess {
 		//Available physical pages are sufficient, fill in the  page table.
 		//Each vpn of this process is assigned with a ppn.
 		for (int i = 0; i < numPages; i++) {
-			pageTable[i] = new TranslationEntry(i, UserKernel.getPage(),
-					true, false, false, false);
+			if (pageTable[i] == null) {
+				pageTable[i] = new TranslationEntry(i, UserKernel.getPage(),
+						true, false, false, false);
+			}
 		}
 
-		//End of managing the free pages list, release the lock.
-		UserKernel.memoryLock.release();
-
 		//Load sections
-		//For the Coff object, load all its Coff Sections.
+		//For the Coff object, load all its Coff Sections. The lock is held
+		//until the read-only pages are loaded, so that no other process can
+		//share them before.
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
@@ -376,14 +412,27 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
+				//A shared page is already loaded.
+				if (pageTable[vpn].readOnly) {
+					continue;
+				}
+
 				//Mark the page as read-only if this section is ready-only.
 				pageTable[vpn].readOnly = section.isReadOnly();
 
 				//Load content in that physical page.
 				section.loadPage(i, pageTable[vpn].ppn);
+
+				if (section.isReadOnly()) {
+					UserKernel.addTextPage(executableName, vpn,
+							pageTable[vpn].ppn);
+				}
 			}
 		}
 
+		//End of managing the free pages list, release the lock.
+		UserKernel.memoryLock.release();
+
 		return true;
 	}
 
@@ -396,7 +445,9 @@ public class UserProcess {
 		for (int i = 0; i < pageTable.length; i++) {
 			TranslationEntry entry = pageTable[i];
 
-			if (entry != null && entry.valid) {
+			//A shared read-only page is freed by its last user.
+			if (entry != null && entry.valid
+					&& UserKernel.releaseTextPage(entry.ppn)) {
 				UserKernel.addPage(entry.ppn);
 			}
 			pageTable[i] = null;
@@ -405,6 +456,44 @@ public class UserProcess {
 		UserKernel.memoryLock.release();
 	}
 
+	/**
+	 * Give this process, a child created by <tt>fork()</tt>, a copy of its
+	 * parent's address space. <tt>numPages</tt> and <tt>coff</tt> are already
+	 * set to the parent's. Read-only pages of the program are shared, and
+	 * every other page is copied now.
+	 * 
+	 * @param parent the process being forked.
+	 * @return <tt>true</tt> if the address space was successfully copied.
+	 */
+	protected boolean copySections(UserProcess parent) {
+		UserKernel.memoryLock.acquire();
+
+		//Check if there are sufficient free physical pages.
+		if (numPages > UserKernel.freePagesNum()) {
+			UserKernel.memoryLock.release();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < numPages; i++) {
+			TranslationEntry entry = parent.pageTable[i];
+			int ppn = entry.ppn;
+			//The parent's read-only page is shared, even if the executable
+			//has been loaded again since.
+			if (!entry.readOnly || !UserKernel.addTextPageUser(ppn)) {
+				ppn = UserKernel.getPage();
+				System.arraycopy(memory, entry.ppn * pageSize, memory,
+						ppn * pageSize, pageSize);
+			}
+			pageTable[i] = new TranslationEntry(i, ppn,
+					true, entry.readOnly, false, false);
+		}
+
+		UserKernel.memoryLock.release();
+		return true;
+	}
+
 	/**
 	 * Initialize the processor's registers in preparation for running the
 	 * program loaded into this process. Set the PC register to point at the
@@ -415,6 +504,13 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		//A child created by fork() continues from its parent's registers.
+		if (forkRegisters != null) {
+			for (int i = 0; i < processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -465,6 +561,7 @@ public class UserProcess {
 		}
 
 		//Open the file. If it doesn't exist, create one.
+		fileChanged(fileName);
 		OpenFile newFile = ThreadedKernel.fileSystem.open(fileName, true);
 
 		//Check if the creation is successful.
@@ -528,70 +625,366 @@ public class UserProcess {
 	 * Handle the read(int fileDescriptor, void *buffer, int count) system call.
 	 */
 	private int handleRead(int desp, int vaddr_bufStart, int count) {
-		//System.out.println("HANDLE HANDLE HANDLE RRRRRRRRRRRRRRRR");
 		//Check if the file descriptor is valid.
 		if (desp < 0 || desp > 15 || openFiles[desp] == null || count < 0) {
 			return -1;
 		}
 
-		//Read bytes from the file into a temporary array.
-		// The file position is advanced by the read method.
-		byte temp[] = new byte[count];
-		int numByteRead = openFiles[desp].read(temp, 0, count);
+		//Read bytes from the file straight into the buffer in memory.
+		//The file position is advanced by the read method.
+		return transferFile(openFiles[desp], vaddr_bufStart, count, true);
+	}
 
-		//If reading fails.
-		if (numByteRead < 0) {
+	/**
+	 * Handle the write(int fileDescriptor, void *buffer, int count) system call.
+	 */
+	private int handleWrite(int desp, int vaddr_bufStart, int count) {
+		//Check if the file descriptor is available.
+		if (desp < 0 || desp > 15 || openFiles[desp] == null || count < 0) {
 			return -1;
 		}
-		if (numByteRead == 0) {
-			return 0;
+
+		//Write bytes from the buffer in memory straight into the file.
+		//The file position is advanced by the write method.
+		fileChanged(openFiles[desp]);
+		return transferFile(openFiles[desp], vaddr_bufStart, count, false);
+	}
+
+	/**
+	 * Handle the readv(int fileDescriptor, struct iovec *iov, int iovcnt)
+	 * system call. The file is read once for the total length of the
+	 * segments, or once per <tt>iovBufferSize</tt> bytes if that is larger,
+	 * and the data is scattered over them.
+	 */
+	private int handleReadv(int desp, int vaddr_iov, int iovcnt) {
+		//Check if the file descriptor is valid.
+		if (desp < 0 || desp > 15 || openFiles[desp] == null) {
+			return -1;
 		}
 
-		//Write those bytes to the buffer in memory.
-		System.out.println("CAAAALLLLLLL writeVirtualMemory");
-		int numByteWrite = writeVirtualMemory(vaddr_bufStart, temp, 0, numByteRead);
-		//If writing fails.
-		if (numByteWrite < numByteRead) {
+		int[] iov = readIovec(vaddr_iov, iovcnt);
+		if (iov == null) {
 			return -1;
 		}
 
-		return numByteWrite;
+		//A single segment needs no kernel buffer.
+		if (iovcnt == 1) {
+			return transferFile(openFiles[desp], iov[0], iov[1], true);
+		}
+
+		//Read a buffer at a time, and scatter what was read. A short read
+		//ends the transfer.
+		int total = iov[2 * iovcnt];
+		byte[] buffer = new byte[Math.min(total, iovBufferSize)];
+		int numByteRead = 0;
+		while (numByteRead < total) {
+			int length = Math.min(buffer.length, total - numByteRead);
+			int read = openFiles[desp].read(buffer, 0, length);
+			if (read < 0 || !copyIovec(iov, iovcnt, numByteRead, buffer,
+					read, true)) {
+				return -1;
+			}
+			numByteRead += read;
+
+			if (read < length) {
+				break;
+			}
+		}
+
+		return numByteRead;
 	}
 
 	/**
-	 * Handle the write(int fileDescriptor, void *buffer, int count) system call.
+	 * Handle the writev(int fileDescriptor, struct iovec *iov, int iovcnt)
+	 * system call. The segments are gathered, and the file is written once,
+	 * or once per <tt>iovBufferSize</tt> bytes if their total length is
+	 * larger.
 	 */
-	private int handleWrite(int desp, int vaddr_bufStart, int count) {
-		//System.out.println("HANDLE HANDLE HANDLE WWWWWWWWWWWWWWWWWWWWWW");
-		//Check if the file descriptor is available.
-		if (desp < 0 || desp > 15 || openFiles[desp] == null || count < 0) {
-	//		System.out.println("!!!!!!!!!!!!!!!!!!!!!!!here1");
+	private int handleWritev(int desp, int vaddr_iov, int iovcnt) {
+		//Check if the file descriptor is valid.
+		if (desp < 0 || desp > 15 || openFiles[desp] == null) {
 			return -1;
 		}
 
-		//Read bytes from the buffer in memory into a temporary array.
-		byte temp[] = new byte[count];
-		//If the buffer is invalid, return -1.
-		if (vaddr_bufStart < 0 || vaddr_bufStart > Machine.processor().getNumPhysPages() * pageSize)
+		int[] iov = readIovec(vaddr_iov, iovcnt);
+		if (iov == null) {
 			return -1;
-		int readNumber = readVirtualMemory(vaddr_bufStart, temp);
-		//If there's nothing to read in the buffer.
-		if(readNumber <= 0) {
-         //               System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!!here2");
+		}
+
+		fileChanged(openFiles[desp]);
+
+		//A single segment needs no kernel buffer.
+		if (iovcnt == 1) {
+			return transferFile(openFiles[desp], iov[0], iov[1], false);
+		}
+
+		//Gather the segments in order, a buffer at a time.
+		int total = iov[2 * iovcnt];
+		byte[] buffer = new byte[Math.min(total, iovBufferSize)];
+		int numByteWrite = 0;
+		while (numByteWrite < total) {
+			int length = Math.min(buffer.length, total - numByteWrite);
+			if (!copyIovec(iov, iovcnt, numByteWrite, buffer, length, false)) {
+				return -1;
+			}
+
+			//Error. Did not finish writing.
+			if (openFiles[desp].write(buffer, 0, length) < length) {
+				return -1;
+			}
+			numByteWrite += length;
+		}
+
+		return numByteWrite;
+	}
+
+	/**
+	 * Read and check an array of <tt>iovcnt</tt> iovec structures from this
+	 * process's virtual memory. Each structure is a 4-byte buffer address
+	 * followed by a 4-byte length.
+	 * 
+	 * @param vaddr the address of the array.
+	 * @param iovcnt the number of structures in the array.
+	 * @return the address and length of each segment, followed by the total
+	 * length of all segments, or <tt>null</tt> if the array or any segment is
+	 * invalid, or if the total length does not fit in an <tt>int</tt>.
+	 */
+	private int[] readIovec(int vaddr, int iovcnt) {
+		if (iovcnt < 0 || iovcnt > maxIovecs) {
+			return null;
+		}
+
+		byte[] data = new byte[iovcnt * 8];
+		if (!validAddressRange(vaddr, data.length)
+				|| readVirtualMemory(vaddr, data) < data.length) {
+			return null;
+		}
+
+		int[] iov = new int[2 * iovcnt + 1];
+		int total = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			int base = Lib.bytesToInt(data, 8 * i);
+			int length = Lib.bytesToInt(data, 8 * i + 4);
+
+			//Each segment must lie in the process's address space.
+			if (!validAddressRange(base, length)) {
+				return null;
+			}
+
+			//Segments may overlap, so their total is not bounded by the
+			//address space.
+			if (length > Integer.MAX_VALUE - total) {
+				return null;
+			}
+
+			iov[2 * i] = base;
+			iov[2 * i + 1] = length;
+			total += length;
+		}
+		iov[2 * iovcnt] = total;
+
+		return iov;
+	}
+
+	/**
+	 * Note that the named file is being created, written or removed, so that
+	 * processes loading it as a program from now on do not share the pages
+	 * of its old contents.
+	 * 
+	 * @param name the name of the file.
+	 */
+	protected static void fileChanged(String name) {
+		UserKernel.memoryLock.acquire();
+		UserKernel.forgetTextPages(name);
+		UserKernel.memoryLock.release();
+	}
+
+	/**
+	 * Note that an open file is being written. Streams such as the console
+	 * cannot hold programs, and are ignored.
+	 * 
+	 * @param file the file being written.
+	 */
+	protected static void fileChanged(OpenFile file) {
+		if (file.getFileSystem() != null) {
+			fileChanged(file.getName());
+		}
+	}
+
+	/**
+	 * Copy <i>length</i> bytes between a kernel buffer and the segments of an
+	 * iovec array, starting <i>start</i> bytes into the segments.
+	 * 
+	 * @param iov the segments, as returned by <tt>readIovec()</tt>.
+	 * @param iovcnt the number of segments.
+	 * @param start the number of bytes of the segments to skip.
+	 * @param buffer the kernel buffer.
+	 * @param length the number of bytes to copy.
+	 * @param toMemory <tt>true</tt> to copy from the buffer into the
+	 * segments, <tt>false</tt> to copy from the segments into the buffer.
+	 * @return <tt>true</tt> if every byte was copied.
+	 */
+	private boolean copyIovec(int[] iov, int iovcnt, int start, byte[] buffer,
+			int length, boolean toMemory) {
+		int offset = 0;
+		for (int i = 0; i < iovcnt && offset < length; i++) {
+			int segmentLength = iov[2 * i + 1];
+			if (start >= segmentLength) {
+				start -= segmentLength;
+				continue;
+			}
+
+			int count = Math.min(segmentLength - start, length - offset);
+			int vaddr = iov[2 * i] + start;
+			int copied = toMemory
+					? writeVirtualMemory(vaddr, buffer, offset, count)
+					: readVirtualMemory(vaddr, buffer, offset, count);
+			if (copied < count) {
+				return false;
+			}
+			offset += count;
+			start = 0;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Transfer data between an open file and this process's virtual memory,
+	 * without copying it through a kernel buffer. The file reads or writes
+	 * the physical memory array directly, one run of physically contiguous
+	 * pages at a time. The pages of a run are pinned while the file uses them.
+	 * 
+	 * <p>
+	 * A short read ends the transfer, and the bytes read so far are returned.
+	 * A short write, a failed read, or a page of the buffer that cannot be
+	 * pinned returns -1, although earlier runs may have been transferred.
+	 * 
+	 * @param file the file to read from or write to.
+	 * @param vaddr the first byte of the buffer in virtual memory.
+	 * @param length the number of bytes to transfer.
+	 * @param toMemory <tt>true</tt> to read from the file into memory,
+	 * <tt>false</tt> to write from memory to the file.
+	 * @return the number of bytes transferred, or -1 on failure.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int length,
+			boolean toMemory) {
+		if (length == 0) {
 			return 0;
 		}
 
-		//Write those bytes into the file.
-		//The file position is advanced by the write method.
-		int numByteWrite = openFiles[desp].write(temp, 0, count);
+		//The whole buffer must lie in the process's address space.
+		if (!validAddressRange(vaddr, length)) {
+			return -1;
+		}
+
+		byte[] memory = Machine.processor().getMemory();
 
-		//Error. Did not finish writing.
-		if(numByteWrite < count){
-	//		System.out.println("!!!!!!!!!!!!!!!!!!!!!!!!here3");
+		int transferred = 0;
+		while (transferred < length) {
+			//The first page of a run may have to be brought into memory.
+			int firstVPN = Processor.pageFromAddress(vaddr + transferred);
+			int firstPPN = pinPage(firstVPN, toMemory, true);
+			if (firstPPN == -1) {
+				return -1;
+			}
+
+			int pagePosition = Processor.offsetFromAddress(vaddr + transferred);
+			int phyaddrStart = firstPPN * pageSize + pagePosition;
+			int runLength = Math.min(pageSize - pagePosition, length - transferred);
+
+			//Extend the run over the following pages while they are already
+			//in memory and sit in the next physical page.
+			int lastVPN = firstVPN;
+			while (transferred + runLength < length) {
+				int ppn = pinPage(lastVPN + 1, toMemory, false);
+				if (ppn == -1) {
+					break;
+				}
+				if (ppn != firstPPN + (lastVPN + 1 - firstVPN)) {
+					unpinPage(lastVPN + 1);
+					break;
+				}
+
+				lastVPN++;
+				runLength += Math.min(pageSize, length - transferred - runLength);
+			}
+
+			int count;
+			if (toMemory) {
+				count = file.read(memory, phyaddrStart, runLength);
+			} else {
+				count = file.write(memory, phyaddrStart, runLength);
+			}
+
+			for (int vpn = firstVPN; vpn <= lastVPN; vpn++) {
+				unpinPage(vpn);
+			}
+
+			if (count < 0) {
+				return -1;
+			}
+			transferred += count;
+
+			if (count < runLength) {
+				//End of file, or nothing more to read from the console.
+				//A write that did not finish is an error.
+				return toMemory ? transferred : -1;
+			}
+		}
+
+		return transferred;
+	}
+
+	/**
+	 * Test if the specified range of virtual addresses lies within this
+	 * process's address space. The pages in it may still be invalid.
+	 * 
+	 * @param vaddr the first byte of the range.
+	 * @param length the number of bytes in the range.
+	 * @return <tt>true</tt> if the range is in the address space.
+	 */
+	protected boolean validAddressRange(int vaddr, int length) {
+		return vaddr >= 0 && length >= 0
+				&& length <= numPages * pageSize - vaddr;
+	}
+
+	/**
+	 * Pin the specified page in physical memory, so that the kernel can read
+	 * or write its physical page directly. Each successful call must be
+	 * matched by a call to <tt>unpinPage()</tt>. All of a process's pages are
+	 * always in memory, so this only checks the page and marks it used, and
+	 * dirty if it is to be written.
+	 * 
+	 * @param vpn the virtual page to pin.
+	 * @param write <tt>true</tt> if the kernel will write the page.
+	 * @param fault <tt>true</tt> if the page may be brought into memory;
+	 * otherwise only a page already in memory is pinned.
+	 * @return the physical page number, or -1 if the page cannot be pinned.
+	 */
+	protected int pinPage(int vpn, boolean write, boolean fault) {
+		if (vpn < 0 || vpn >= numPages) {
 			return -1;
 		}
 
-		return numByteWrite;
+		TranslationEntry entry = pageTable[vpn];
+		if (entry == null || !entry.valid || (write && entry.readOnly)) {
+			return -1;
+		}
+
+		entry.used = true;
+		if (write) {
+			entry.dirty = true;
+		}
+		return entry.ppn;
+	}
+
+	/**
+	 * Release a page pinned by <tt>pinPage()</tt>.
+	 * 
+	 * @param vpn the virtual page to release.
+	 */
+	protected void unpinPage(int vpn) {
 	}
 
 	/**
@@ -622,6 +1015,7 @@ public class UserProcess {
 		}
 
 		//Delete the file from file system.
+		fileChanged(fileName);
 		if(ThreadedKernel.fileSystem.remove(fileName)) {
 			return 0;
 		} else {
@@ -680,6 +1074,67 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Handle the fork() system call. The child runs the same executable with
+	 * a copy of this process's address space, and its own handle on each
+	 * open file at the same position. It continues from the system call with
+	 * a return value of 0.
+	 */
+	private int handleFork() {
+		UserProcess childProcess = UserProcess.newUserProcess();
+
+		//The child loads pages from the parent's executable, even if the
+		//file has been replaced since. The last one to exit closes it.
+		childProcess.executableName = executableName;
+		childProcess.coff = coff;
+		childProcess.numPages = numPages;
+		UserKernel.memoryLock.acquire();
+		UserKernel.shareCoff(coff);
+		UserKernel.memoryLock.release();
+		if (!childProcess.copySections(this)) {
+			childProcess.closeCoff();
+			childProcess.killMyself();
+			return -1;
+		}
+
+		//Copy the file table. The console is shared through the child's own
+		//stdin and stdout, and other files are opened again.
+		for (int i = 0; i < openFiles.length; i++) {
+			OpenFile file = openFiles[i];
+			OpenFile childFile = null;
+			if (file == stdin) {
+				childFile = childProcess.stdin;
+			} else if (file == stdout) {
+				childFile = childProcess.stdout;
+			} else if (file != null && file.getFileSystem() != null) {
+				childFile = file.getFileSystem().open(file.getName(), false);
+				if (childFile != null) {
+					childFile.seek(file.tell());
+				}
+			}
+			childProcess.openFiles[i] = childFile;
+		}
+
+		//The child returns 0 from this system call.
+		Processor processor = Machine.processor();
+		int[] registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < registers.length; i++) {
+			registers[i] = processor.readRegister(i);
+		}
+		registers[Processor.regV0] = 0;
+		registers[Processor.regPC] = registers[Processor.regNextPC];
+		registers[Processor.regNextPC] += 4;
+		childProcess.forkRegisters = registers;
+
+		children.add(childProcess);
+		childProcess.setParent(this);
+
+		childProcess.thread = new UThread(childProcess);
+		childProcess.thread.setName(executableName).fork();
+
+		return childProcess.getPID();
+	}
+
 	/**
 	 * Handle the join(int processID, int *status) system call.
 	 */
@@ -729,9 +1184,6 @@ public class UserProcess {
 	 * Handle the exit(int status) system call.
 	 */
 	private int handleExit(int status) {
-		//Close Coff.
-		coff.close();
-
 		//Close opened files.
 		for (int i = 0; i < openFiles.length; i++) {
 			if (openFiles[i] != null) {
@@ -747,6 +1199,9 @@ public class UserProcess {
 		unloadSections();
 		//UThread.finish();
 
+		//Close Coff, after the pages loaded from it are released.
+		closeCoff();
+
 		//The last exiting process should terminate the kernel.
 		//Checking if it's the last one and decreasing the process number
 		//should be done synchronously.
@@ -764,6 +1219,19 @@ public class UserProcess {
 		return 0;
 	}
 
+	/**
+	 * Close the executable of this process, unless a process created by
+	 * <tt>fork()</tt> still shares it.
+	 */
+	private void closeCoff() {
+		UserKernel.memoryLock.acquire();
+		boolean last = UserKernel.releaseCoff(coff);
+		UserKernel.memoryLock.release();
+		if (last) {
+			coff.close();
+		}
+	}
+
     /**
      * Kill a created but fail to execute .coff file process.
      */
@@ -797,7 +1265,8 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14,
+			syscallFork = 16;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -851,6 +1320,20 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -902,6 +1385,15 @@ public class UserProcess {
                 //System.out.println("handling exit");
 				return handleExit(a0);
 
+			case syscallReadv:
+				return handleReadv(a0, a1, a2);
+
+			case syscallWritev:
+				return handleWritev(a0, a1, a2);
+
+			case syscallFork:
+				return handleFork();
+
 			default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			Lib.assertNotReached("Unknown system call!");
@@ -939,6 +1431,17 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Get the file open under the specified descriptor, or <tt>null</tt> if
+	 * the descriptor is invalid or unused.
+	 */
+	protected OpenFile getOpenFile(int desp) {
+		if (desp < 0 || desp >= maxOpenFile) {
+			return null;
+		}
+		return openFiles[desp];
+	}
+
 	/** Get the pid of this process. */
 	protected int getPID() {
 		return pid;
@@ -952,6 +1455,9 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file containing the program. */
+	protected String executableName;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -963,6 +1469,9 @@ public class UserProcess {
 
 	private int initialPC, initialSP;
 
+	/** The registers a child created by fork() starts with, or null. */
+	private int[] forkRegisters = null;
+
 	private int argc, argv;
 
 	private static final int pageSize = Processor.pageSize;
@@ -974,6 +1483,12 @@ public class UserProcess {
 	 */
 	private static final int maxArgLen = 256;
 
+	/** readv() and writev() take at most 16 segments. */
+	private static final int maxIovecs = 16;
+
+	/** The largest kernel buffer readv() and writev() use at once. */
+	private static final int iovBufferSize = 8 * pageSize;
+
 	/** A Process can have at most 16 files opened concurrently. **/
 	private static final int maxOpenFile = 16;
 
@@ -26,11 +26,11 @@ public class VMKernel extends UserKernel {
 		swapSpace = new SwapFile();
 		pinLock = new Lock();
         pinCond = new Condition(pinLock);
+        WaitMonitor.setName(pinCond, "VMKernel.pinCond");
         invertedPageTable = new MemoryPage[Machine.processor().getNumPhysPages()];
         for (int i = 0; i < invertedPageTable.length; i++) {
             invertedPageTable[i] = new MemoryPage();
         }
-        swapMap = new HashMap<>();
 
 	}
 
@@ -57,6 +57,18 @@ public class VMKernel extends UserKernel {
         super.terminate();
 	}
 
+	/**
+	 * Return a physical page that is no longer used to the free list.
+	 * pinLock must be held.
+	 */
+	protected static void freePage(int ppn) {
+		invertedPageTable[ppn].processes.clear();
+
+		memoryLock.acquire();
+		addPage(ppn);
+		memoryLock.release();
+	}
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
@@ -68,94 +80,119 @@ public class VMKernel extends UserKernel {
     // number of pages in memory that has been pinned
 	protected static int pinnedPageNum = 0;
 
+	// guards the pages in memory, the swap space and the page tables of
+	// every process; it is held for the whole of a page fault
 	protected static Lock pinLock;
 
+	// signaled when a page is unpinned
 	protected static Condition pinCond;
 
 	// an array of physical pages in memory indexed by ppn
     protected static MemoryPage[] invertedPageTable = new MemoryPage[Machine.processor().getNumPhysPages()];
 
-    // vpn ---> index of page in swap space
-    protected static HashMap<Integer, Integer> swapMap;
-
 	public static class MemoryPage {
-	    UserProcess process;
+	    // the processes using this page, all at the same vpn; more than one
+	    // after fork() until the page is written. Empty if the page is free
+	    LinkedList<VMProcess> processes = new LinkedList<>();
 	    int vpn;
-	    boolean pinned = false;
+	    // number of transfers using this page; it cannot be evicted until 0
+	    int pinCount = 0;
         MemoryPage() {}
     }
 
     /**
      * This class represents the swap space in disk
-     * and can perform swap in and swap out operation
+     * and can perform swap in and swap out operation.
+     * The caller must hold pinLock.
      */
     protected static class SwapFile {
 
         // the file for swap space
         static OpenFile swapFile;
 
-        // a page list to track the free page
+        // a page list to track the free pages in the swap file
         static LinkedList<Integer> freeList;
 
-        // a lock making sure there won't have two process modifying swap space at the same time
-        static Lock swapLock;
+        // number of pages the swap file has grown to
+        static int numSwapPages;
 
-        // a condition variable to track if swap space is full
-        static Condition swapFull;
-
-        // index of swap space ---> UserProcess
-        static HashMap<Integer, UserProcess> processMap;
+        // number of processes sharing a page after fork(), for pages shared
+        // by more than one
+        static HashMap<Integer, Integer> shareCount;
 
         SwapFile() {
             swapFile = ThreadedKernel.fileSystem.open("swapFile", true);
-            swapLock = new Lock();
-            swapFull = new Condition(swapLock);
-            processMap = new HashMap<>();
             freeList = new LinkedList<>();
-            for (int i = 0; i < 100; i++) {
-                freeList.add(i);
-            }
+            numSwapPages = 0;
+            shareCount = new HashMap<>();
         }
 
+        /**
+         * Swap a page in from swap space to memory, and free its place in
+         * swap space unless other processes still share it
+         * @param spn
+         * @param ppn
+         * @return length of content read from swap file to memory
+         */
         static int swapIn(int spn, int ppn) {
-            if (freeList.get(spn) != -1) {
-                return -1;
-            }
             int swapResult = swapFile.read(spn * Processor.pageSize,
                     Machine.processor().getMemory(),
                     ppn * Processor.pageSize, Processor.pageSize);
-            if (swapResult != -1) {
-                freeList.add(spn);
-                swapLock.acquire();
-                swapFull.wake();
-                swapLock.release();
-            }
+            free(spn);
             return swapResult;
         }
 
         /**
-         * Swap out a physical page from memory to swap space
+         * Swap out a physical page from memory to swap space, growing the
+         * swap file if it has no free page
          * @param ppn
-         * @return length of content written from memory to swap file
+         * @return index of the page in swap space, or -1 on failure
          */
         static int swapOut(int ppn) {
-            swapLock.acquire();
-            while(freeList.size() == 0) {
-                swapFull.sleep();
+            int spn;
+            if (freeList.isEmpty()) {
+                spn = numSwapPages++;
+            }
+            else {
+                spn = freeList.removeFirst();
             }
-            swapLock.release();
 
-            int spn = freeList.remove();
             int swapResult = swapFile.write(spn * Processor.pageSize,
                     Machine.processor().getMemory(), ppn * Processor.pageSize,
                     Processor.pageSize);
 
-            if (swapResult >= 0) {
-                processMap.put(spn, invertedPageTable[ppn].process);
-                swapMap.put(invertedPageTable[ppn].vpn, spn);
-                return spn;
+            if (swapResult < Processor.pageSize) {
+                freeList.add(spn);
+                return -1;
+            }
+            return spn;
+        }
+
+        /**
+         * Add a process to those sharing a page in swap space
+         * @param spn
+         */
+        static void share(int spn) {
+            Integer count = shareCount.get(spn);
+            shareCount.put(spn, count == null ? 2 : count + 1);
+        }
+
+        /**
+         * Drop a process from those using a page in swap space, and free the
+         * page when no process uses it any more
+         * @param spn
+         */
+        static void free(int spn) {
+            Integer count = shareCount.get(spn);
+            if (count == null) {
+                freeList.add(spn);
+            }
+            else if (count == 2) {
+                shareCount.remove(spn);
+            }
+            else {
+                shareCount.put(spn, count - 1);
             }
-            return swapResult;
         }
     }
 }
@@ -3,6 +3,10 @@ package nachos.vm;
 import nachos.machine.*;
 import nachos.userprog.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -20,15 +24,10 @@ public class VMProcess extends UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
+        sync();
 
         for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-            TranslationEntry TLBEntry = new TranslationEntry(Machine.processor().readTLBEntry(i));
-            TranslationEntry PTEntry = pageTable[TLBEntry.vpn];
-
-            if (TLBEntry.valid) {
-                PTEntry.used = TLBEntry.used;
-                PTEntry.dirty = TLBEntry.dirty;
-            }
+            TranslationEntry TLBEntry = Machine.processor().readTLBEntry(i);
             TLBEntry.valid = false;
             Machine.processor().writeTLBEntry(i, TLBEntry);
         }
@@ -61,10 +60,99 @@ public class VMProcess extends UserProcess {
 
 	@Override
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>, and remove
+	 * the file mappings, writing back their dirty pages.
 	 */
 	protected void unloadSections() {
-        super.unloadSections();
+        VMKernel.pinLock.acquire();
+
+        while (!mappings.isEmpty()) {
+            unmap(mappings.getFirst());
+        }
+
+        if (UserKernel.currentProcess() == this) {
+            for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+                TranslationEntry TLBEntry = Machine.processor().readTLBEntry(i);
+                TLBEntry.valid = false;
+                Machine.processor().writeTLBEntry(i, TLBEntry);
+            }
+        }
+
+        for (int vpn = 0; vpn < pageTable.length; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+            if (entry != null && entry.valid) {
+                releasePage(entry.ppn);
+            }
+            pageTable[vpn] = null;
+        }
+
+        for (int spn : swapMap.values()) {
+            VMKernel.swapSpace.free(spn);
+        }
+        swapMap.clear();
+
+        VMKernel.pinLock.release();
+	}
+
+	@Override
+	/**
+	 * Share the parent's pages with this process, which was created by
+	 * <tt>fork()</tt>. A page is only copied when one of the processes
+	 * sharing it writes it: pages of the parent in memory become read only
+	 * for both, and pages in swap space share their place there. File maps
+	 * are not inherited.
+	 * 
+	 * @return <tt>true</tt>.
+	 */
+	protected boolean copySections(UserProcess parent) {
+        VMProcess parentProcess = (VMProcess) parent;
+
+        VMKernel.pinLock.acquire();
+
+        // the TLB may hold writable entries of the parent, and newer bits
+        if (UserKernel.currentProcess() == parentProcess) {
+            parentProcess.sync();
+            for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+                TranslationEntry TLBEntry = Machine.processor().readTLBEntry(i);
+                TLBEntry.valid = false;
+                Machine.processor().writeTLBEntry(i, TLBEntry);
+            }
+        }
+
+        pageTable = new TranslationEntry[numPages];
+        for (int vpn = 0; vpn < numPages; vpn++) {
+            TranslationEntry entry = parentProcess.pageTable[vpn];
+            if (entry.valid) {
+                // a read only page of the program gets one more user, even if
+                // the executable has been loaded again since
+                if (inReadOnlySection(vpn)) {
+                    UserKernel.memoryLock.acquire();
+                    UserKernel.addTextPageUser(entry.ppn);
+                    UserKernel.memoryLock.release();
+                }
+                entry.readOnly = true;
+                pageTable[vpn] = new TranslationEntry(entry);
+                VMKernel.invertedPageTable[entry.ppn].processes.add(this);
+            }
+            else {
+                pageTable[vpn] = new TranslationEntry(vpn, 0,
+                        false, false, false, false);
+                Integer spn = parentProcess.swapMap.get(vpn);
+                if (spn != null) {
+                    swapMap.put(vpn, spn);
+                    VMKernel.swapSpace.share(spn);
+                }
+            }
+        }
+
+        VMKernel.pinLock.release();
+        return true;
+	}
+
+	@Override
+	protected boolean validAddressRange(int vaddr, int length) {
+		return vaddr >= 0 && length >= 0
+				&& length <= pageTable.length * pageSize - vaddr;
 	}
 
 	@Override
@@ -80,11 +168,7 @@ public class VMProcess extends UserProcess {
         Lib.assertTrue(offset >= 0 && length >= 0
                 && offset + length <= data.length);
 
-        //Check if this reading exceeds the process's address space.
-        //If it exceeds, the reading is illegal, return 0.
-        int firstVPN = Processor.pageFromAddress(vaddr);
-        int lastVPN = Processor.pageFromAddress(vaddr + length);
-        if (firstVPN < 0 || lastVPN > numPages) {
+        if (vaddr < 0) {
             return 0;
         }
         //Get the reference of physical memory array.
@@ -92,22 +176,26 @@ public class VMProcess extends UserProcess {
 
         //Read data from physical memory to the data array.
         //Virtual address in the transfer is continuous, physical is not.
-        //Virtual memory -> page table -> physical memory -> memory array
+        //Each page is faulted in if needed and pinned while it is copied.
+        //The transfer stops at the first page outside the address space.
         int readBytes = 0;
         while (readBytes < length) {
             int vaddrStart = vaddr + readBytes;
             //Compute vpm
             int VPN = Processor.pageFromAddress(vaddrStart);
-            int ppn = pin(VPN, false);
+            int ppn = pinPage(VPN, false, true);
+            if (ppn == -1) {
+                break;
+            }
             //Compute offset
             int pagePosition = Processor.offsetFromAddress(vaddrStart);
             int bytesToRead = Math.min(pageSize - pagePosition, length - readBytes);
             //Compute physical address
-            int phyaddrStart = pageTable[VPN].ppn * pageSize + pagePosition;
+            int phyaddrStart = ppn * pageSize + pagePosition;
             System.arraycopy(memory, phyaddrStart, data,
                     offset + readBytes, bytesToRead);
             readBytes += bytesToRead;
-            unpin(VPN);
+            unpinPage(VPN);
         }
 
         return readBytes;
@@ -125,11 +213,7 @@ public class VMProcess extends UserProcess {
         Lib.assertTrue(offset >= 0 && length >= 0
                 && offset + length <= data.length);
 
-        //Check if this writing exceeds the process's address space.
-        //If it exceeds, the writing is illegal, return 0.
-        int firstVPN = Processor.pageFromAddress(vaddr);
-        int lastVPN = Processor.pageFromAddress(vaddr + length);
-        if (firstVPN < 0 || lastVPN > numPages) {
+        if (vaddr < 0) {
             return 0;
         }
 
@@ -138,75 +222,132 @@ public class VMProcess extends UserProcess {
 
         //Write data from the data array to physical memory.
         //Virtual address in the transfer is continuous, physical is not.
-        //Virtual memory -> page table -> physical memory -> memory array
+        //The transfer stops at the first page that is outside the address
+        //space or read only.
         int writeBytes = 0;
         while (writeBytes < length) {
             int vaddrStart = vaddr + writeBytes;
             int VPN = Processor.pageFromAddress(vaddrStart);
-            int ppn = pin(VPN, true);
+            int ppn = pinPage(VPN, true, true);
+            if (ppn == -1) {
+                break;
+            }
             int pagePosition = Processor.offsetFromAddress(vaddrStart);
             int bytesToWrite = Math.min(pageSize - pagePosition, length - writeBytes);
-            int phyaddrStart = pageTable[VPN].ppn * pageSize + pagePosition;
+            int phyaddrStart = ppn * pageSize + pagePosition;
             System.arraycopy(data, offset + writeBytes, memory,
                     phyaddrStart, bytesToWrite);
             writeBytes += bytesToWrite;
-            unpin(VPN);
+            unpinPage(VPN);
         }
 
         return writeBytes;
     }
 
+    @Override
+    /**
+     * Pin the specified page for a system call that uses its physical page
+     * directly, first faulting it in if it is not in memory and
+     * <i>fault</i> is set. A pinned page is never chosen for eviction.
+     */
+    protected int pinPage(int vpn, boolean write, boolean fault) {
+        VMKernel.pinLock.acquire();
 
-    private int pin(int vpn, boolean write) {
-
-        // check if vpn is valid
-        if (vpn < 0 || vpn > pageTable.length) {
+        // check if vpn is in the address space
+        if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null) {
+            VMKernel.pinLock.release();
             return -1;
         }
 
-        // check if mapping is valid
         TranslationEntry entry = pageTable[vpn];
-        if (entry.valid == false || entry.vpn != vpn) {
-            return -1;
+        if (!entry.valid) {
+            if (!fault) {
+                VMKernel.pinLock.release();
+                return -1;
+            }
+            handlePageFault(vpn);
         }
 
-        // if we pin the page because it's written
-        if (write) {
-
-            // we can not write a page that is read only
-            if (entry.readOnly) {
+        // a page shared after fork() is copied before it is written, but a
+        // read only section can not be written
+        if (write && entry.readOnly) {
+            if (inReadOnlySection(vpn)) {
+                VMKernel.pinLock.release();
                 return -1;
             }
-            entry.dirty = true;
+            copyOnWrite(vpn);
         }
+
         entry.used = true;
+        if (write) {
+            entry.dirty = true;
+        }
 
-        VMKernel.pinLock.acquire();
-        while (VMKernel.pinnedPageNum >= numPages) {
-            VMKernel.pinCond.sleep();
+        VMKernel.MemoryPage page = VMKernel.invertedPageTable[entry.ppn];
+        if (page.pinCount++ == 0) {
+            VMKernel.pinnedPageNum++;
         }
-        VMKernel.pinnedPageNum++;
-        VMKernel.invertedPageTable[entry.ppn].pinned = true;
+
         VMKernel.pinLock.release();
         return entry.ppn;
     }
 
-    protected void unpin(int vpn) {
-        if (vpn < 0 || vpn > pageTable.length) {
-            return;
-        }
+    @Override
+    protected void unpinPage(int vpn) {
+        VMKernel.pinLock.acquire();
+
         TranslationEntry entry = pageTable[vpn];
-        if (entry.valid == false || entry.vpn != vpn) {
-            return;
+        Lib.assertTrue(entry != null && entry.valid);
+
+        VMKernel.MemoryPage page = VMKernel.invertedPageTable[entry.ppn];
+        Lib.assertTrue(page.pinCount > 0);
+        if (--page.pinCount == 0) {
+            VMKernel.pinnedPageNum--;
+            VMKernel.pinCond.wake();
         }
 
-        VMKernel.pinLock.acquire();
-        VMKernel.pinnedPageNum--;
-        VMKernel.invertedPageTable[entry.ppn].pinned = false;
-        VMKernel.pinCond.wake();
         VMKernel.pinLock.release();
     }
 
+	/**
+	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>void *mmap(int fd, int offset, int length);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  munmap(void *address);</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * @param syscall the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+			case syscallMmap:
+				return handleMmap(a0, a1, a2);
+
+			case syscallMunmap:
+				return handleMunmap(a0);
+
+			default:
+				return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -220,6 +361,9 @@ public class VMProcess extends UserProcess {
 		switch (cause) {
 			case Processor.exceptionTLBMiss:
                 handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+                break;
+			case Processor.exceptionReadOnly:
+                handleReadOnly(processor.readRegister(Processor.regBadVAddr));
                 break;
 			default:
 				super.handleException(cause);
@@ -227,6 +371,115 @@ public class VMProcess extends UserProcess {
 		}
 	}
 
+    /**
+     * Handle the mmap(int fd, int offset, int length) system call. The
+     * length bytes of the file starting at offset, which must be a multiple
+     * of the page size, are mapped at the end of the address space. No page
+     * is read until it is first used. The maps of a process cover at most
+     * maxMapPages pages, so that a large length cannot make the page table
+     * grow without bound.
+     * @return the address of the map, or -1 on failure
+     */
+    private int handleMmap(int fd, int offset, int length) {
+        OpenFile file = getOpenFile(fd);
+        if (file == null || file.getFileSystem() == null || offset < 0
+                || offset % pageSize != 0 || length <= 0) {
+            return -1;
+        }
+
+        int mapPages = length / pageSize + (length % pageSize == 0 ? 0 : 1);
+
+        VMKernel.pinLock.acquire();
+
+        // the maps, and the holes left by removed ones, take at most
+        // maxMapPages pages above the program, and every mapped byte must
+        // have an int address
+        int firstVPN = pageTable.length;
+        if (mapPages > maxMapPages - (firstVPN - numPages)
+                || mapPages > Integer.MAX_VALUE / pageSize - firstVPN) {
+            VMKernel.pinLock.release();
+            return -1;
+        }
+
+        // the map has its own handle on the file, so it outlives the descriptor
+        OpenFile mapFile = file.getFileSystem().open(file.getName(), false);
+        if (mapFile == null) {
+            VMKernel.pinLock.release();
+            return -1;
+        }
+
+        pageTable = Arrays.copyOf(pageTable, firstVPN + mapPages);
+        for (int vpn = firstVPN; vpn < pageTable.length; vpn++) {
+            pageTable[vpn] = new TranslationEntry(vpn, 0,
+                    false, false, false, false);
+        }
+        mappings.add(new Mapping(mapFile, offset, length, firstVPN, mapPages));
+
+        VMKernel.pinLock.release();
+        return firstVPN * pageSize;
+    }
+
+    /**
+     * Handle the munmap(void *address) system call. Dirty pages of the map
+     * are written back to the file.
+     * @return 0 on success, or -1 if no map starts at address
+     */
+    private int handleMunmap(int vaddr) {
+        VMKernel.pinLock.acquire();
+
+        for (Mapping map : mappings) {
+            if (map.firstVPN * pageSize == vaddr) {
+                unmap(map);
+                VMKernel.pinLock.release();
+                return 0;
+            }
+        }
+
+        VMKernel.pinLock.release();
+        return -1;
+    }
+
+    /**
+     * Remove a map from the address space, writing its dirty pages back to
+     * the file. pinLock must be held.
+     * @param map
+     */
+    private void unmap(Mapping map) {
+        if (UserKernel.currentProcess() == this) {
+            sync();
+            for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+                TranslationEntry TLBEntry = Machine.processor().readTLBEntry(i);
+                if (TLBEntry.valid && map.contains(TLBEntry.vpn)) {
+                    TLBEntry.valid = false;
+                    Machine.processor().writeTLBEntry(i, TLBEntry);
+                }
+            }
+        }
+
+        for (int vpn = map.firstVPN; vpn < map.firstVPN + map.numPages; vpn++) {
+            TranslationEntry entry = pageTable[vpn];
+            if (entry.valid) {
+                if (entry.dirty) {
+                    writeBack(map, vpn, entry.ppn);
+                }
+                releasePage(entry.ppn);
+            }
+            pageTable[vpn] = null;
+        }
+
+        map.file.close();
+        mappings.remove(map);
+
+        // give back the end of the address space if it is now unused
+        int length = pageTable.length;
+        while (length > numPages && pageTable[length - 1] == null) {
+            length--;
+        }
+        if (length < pageTable.length) {
+            pageTable = Arrays.copyOf(pageTable, length);
+        }
+    }
+
     /** Handle TLB miss exception
      * @param vaddr
      * @return
@@ -235,13 +488,24 @@ public class VMProcess extends UserProcess {
 
 		Lib.debug(dbgVM, "\thandleTLBMissException: begin to handle exception");
         int vpn = Processor.pageFromAddress(vaddr);
-        Lib.assertTrue(vpn >= 0 && vpn <= numPages);
+
+        // an address outside the address space, or in an unmapped hole
+        if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null) {
+            super.handleException(Processor.exceptionAddressError);
+            return;
+        }
 
         // entry must be in page table, let's check if it's valid
         TranslationEntry entry = pageTable[vpn];
 
-        if (!entry.valid) {
-            handlePageFault(vpn);
+        // nothing below gives up the processor unless there is a page fault,
+        // so pinLock is only needed then
+        boolean fault = !entry.valid;
+        if (fault) {
+            VMKernel.pinLock.acquire();
+            if (!entry.valid) {
+                handlePageFault(vpn);
+            }
         }
 
         // pick a victim entry in TLB, and check if TLB is full at the same time
@@ -263,167 +527,471 @@ public class VMProcess extends UserProcess {
         // over write the victim entry in TLB
         TranslationEntry newEntry = new TranslationEntry(entry);
         Machine.processor().writeTLBEntry(index, newEntry);
+
+        if (fault) {
+            VMKernel.pinLock.release();
+        }
 	}
 
     /**
-     * Synchronize the bits in page table from TLB
+     * Handle a write to a read only page. A page shared after fork() is
+     * copied, and the write is tried again; writing a read only section of
+     * the program is an error.
+     * @param vaddr
+     */
+    private void handleReadOnly(int vaddr) {
+        int vpn = Processor.pageFromAddress(vaddr);
+
+        if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn] == null
+                || inReadOnlySection(vpn)) {
+            super.handleException(Processor.exceptionReadOnly);
+            return;
+        }
+
+        VMKernel.pinLock.acquire();
+
+        // the page may have been evicted, and so copied, while we waited
+        TranslationEntry entry = pageTable[vpn];
+        if (!entry.valid) {
+            handlePageFault(vpn);
+        }
+        if (entry.readOnly) {
+            copyOnWrite(vpn);
+        }
+
+        VMKernel.pinLock.release();
+    }
+
+    /**
+     * Make a page that is in memory writable. If other processes still share
+     * it after fork(), this process gets its own copy first. pinLock must be
+     * held.
+     * @param vpn
+     */
+    private void copyOnWrite(int vpn) {
+        TranslationEntry entry = pageTable[vpn];
+        VMKernel.MemoryPage page = VMKernel.invertedPageTable[entry.ppn];
+
+        if (page.processes.size() > 1) {
+            // the shared page must stay in memory until it is copied
+            if (page.pinCount++ == 0) {
+                VMKernel.pinnedPageNum++;
+            }
+            int ppn = findPage();
+            if (--page.pinCount == 0) {
+                VMKernel.pinnedPageNum--;
+                VMKernel.pinCond.wake();
+            }
+
+            byte[] memory = Machine.processor().getMemory();
+            System.arraycopy(memory, entry.ppn * pageSize, memory,
+                    ppn * pageSize, pageSize);
+
+            releasePage(entry.ppn);
+            entry.ppn = ppn;
+            entry.used = true;
+            // the copy is in neither the .coff file nor swap space
+            entry.dirty = true;
+            VMKernel.invertedPageTable[ppn].vpn = vpn;
+            VMKernel.invertedPageTable[ppn].processes.add(this);
+        }
+
+        entry.readOnly = false;
+
+        if (UserKernel.currentProcess() == this) {
+            for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+                TranslationEntry TLBEntry = Machine.processor().readTLBEntry(i);
+                if (TLBEntry.valid && TLBEntry.vpn == vpn) {
+                    TLBEntry.valid = false;
+                    Machine.processor().writeTLBEntry(i, TLBEntry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop using a physical page, and free it if no other process shares it.
+     * pinLock must be held.
+     * @param ppn
+     */
+    private void releasePage(int ppn) {
+        VMKernel.MemoryPage page = VMKernel.invertedPageTable[ppn];
+        page.processes.remove(this);
+        if (inReadOnlySection(page.vpn)) {
+            UserKernel.memoryLock.acquire();
+            UserKernel.releaseTextPage(ppn);
+            UserKernel.memoryLock.release();
+        }
+        if (page.processes.isEmpty()) {
+            VMKernel.freePage(ppn);
+        }
+    }
+
+    /**
+     * Synchronize the bits in page table from TLB. The TLB only holds
+     * entries of the current process. A bit is never cleared here, and the
+     * used bits in the TLB are cleared so that the clock algorithm sees
+     * new uses.
      */
 	private void sync() {
-        for (int i = 0; i > Machine.processor().getTLBSize(); i++) {
-            TranslationEntry TLBEntry = new TranslationEntry(Machine.processor().readTLBEntry(i));
-            TranslationEntry PTEntry = pageTable[TLBEntry.vpn];
+        for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+            TranslationEntry TLBEntry = Machine.processor().readTLBEntry(i);
             if (TLBEntry.valid) {
-                PTEntry.used = TLBEntry.used;
-                PTEntry.dirty = TLBEntry.dirty;
+                TranslationEntry PTEntry = pageTable[TLBEntry.vpn];
+                PTEntry.used |= TLBEntry.used;
+                PTEntry.dirty |= TLBEntry.dirty;
+                TLBEntry.used = false;
+                Machine.processor().writeTLBEntry(i, TLBEntry);
             }
         }
     }
 
     /**
-     * Handle page fault when there is no valid mapping in page table
+     * Handle page fault when there is no valid mapping in page table.
+     * pinLock must be held.
      * @param vpn
      */
 	private void handlePageFault(int vpn) {
-	    int ppn;
+        // a read only page of the program may be in memory already
+        if (shareTextPage(vpn)) {
+            return;
+        }
+
+        int ppn = findPage();
 
-	    // there has available page in memory, we can directly get one
-	    if (VMKernel.freePagesNum() != 0) {
-	        ppn = VMKernel.getPage();
-	        allocatePage(vpn, ppn, false);
+        // another process may have loaded it while we waited for a page
+        if (shareTextPage(vpn)) {
+            VMKernel.freePage(ppn);
+            return;
         }
 
-        // there is no available page in memory, we need to pick one to kick out
-        else {
-            sync();
-            do {
-                ppn = clockAlgorithm();
-            }
-            while (VMKernel.invertedPageTable[ppn].pinned);
-            allocatePage(vpn, ppn, true);
+        allocatePage(vpn, ppn);
+    }
+
+    /**
+     * Map a read only page of the program that another process running the
+     * same executable has in memory. pinLock must be held.
+     * @param vpn
+     * @return true if the page was mapped
+     */
+    private boolean shareTextPage(int vpn) {
+        if (!inReadOnlySection(vpn)) {
+            return false;
         }
+
+        UserKernel.memoryLock.acquire();
+        int ppn = UserKernel.getTextPage(executableName, vpn);
+        UserKernel.memoryLock.release();
+        if (ppn == -1) {
+            return false;
+        }
+
+        TranslationEntry PTEntry = pageTable[vpn];
+        PTEntry.ppn = ppn;
+        PTEntry.valid = true;
+        PTEntry.readOnly = true;
+        PTEntry.dirty = false;
+        PTEntry.used = true;
+        VMKernel.invertedPageTable[ppn].processes.add(this);
+        return true;
     }
 
     /**
-     * Use clock algorithm to pick a page to kick out
+     * Get a physical page for this process, evicting one if none is free.
+     * pinLock must be held.
      * @return
      */
-    protected int clockAlgorithm() {
-	    while (pageTable[VMKernel.invertedPageTable[clock].vpn].used) {
-	        pageTable[VMKernel.invertedPageTable[clock].vpn].used = false;
-	        clock = (clock + 1) % VMKernel.invertedPageTable.length;
+    private int findPage() {
+        while (true) {
+            int ppn = -1;
+
+            // there has available page in memory, we can directly get one
+            UserKernel.memoryLock.acquire();
+            if (VMKernel.freePagesNum() != 0) {
+                ppn = VMKernel.getPage();
+            }
+            UserKernel.memoryLock.release();
+
+            if (ppn != -1) {
+                return ppn;
+            }
+
+            // there is no available page in memory, we need to pick one to
+            // kick out
+            ppn = clockAlgorithm();
+            if (ppn != -1) {
+                handleEvict(ppn);
+                return ppn;
+            }
         }
-        int ppn = clock;
-	    clock = (clock + 1) % VMKernel.invertedPageTable.length;
-	    return ppn;
     }
 
-    protected void allocatePage(int vpn, int ppn, boolean evict) {
-	    boolean allocated = false;
-	    boolean readOnly = false;
-	    TranslationEntry PTEntry = pageTable[vpn];
+    /**
+     * Use clock algorithm to pick a page to kick out. Pinned pages are
+     * skipped. A page shared after fork() is used if any process sharing it
+     * has used it.
+     * @return the page, or -1 if every page was pinned; a page may have been
+     * freed while waiting for one to be unpinned
+     */
+    protected int clockAlgorithm() {
+        // the used bits of the current process may still be in the TLB
+        VMProcess current = (VMProcess) UserKernel.currentProcess();
+        if (current != null) {
+            current.sync();
+        }
 
-	    // physical pages are full, we need to evict one. Swap out is possible.
-        if (evict) {
-            handleEvict(vpn, ppn);
+        if (VMKernel.pinnedPageNum == VMKernel.invertedPageTable.length) {
+            VMKernel.pinCond.sleep();
+            return -1;
         }
 
+        while (true) {
+            VMKernel.MemoryPage page = VMKernel.invertedPageTable[clock];
+            int ppn = clock;
+            clock = (clock + 1) % VMKernel.invertedPageTable.length;
 
-        if (PTEntry.dirty && VMKernel.swapMap.containsKey(vpn)) {
-            int spn = VMKernel.swapMap.get(vpn);
+            if (page.pinCount > 0) {
+                continue;
+            }
 
-            if (VMKernel.swapSpace.processMap.containsKey(spn) &&
-                    VMKernel.swapSpace.processMap.get(spn) == this) {
-                if (VMKernel.swapSpace.swapIn(spn, ppn) > 0) {
-                    VMKernel.swapMap.remove(vpn);
-                    VMKernel.swapSpace.processMap.remove(spn);
-                    allocated = true;
-                }
+            boolean used = false;
+            for (VMProcess process : page.processes) {
+                TranslationEntry entry = process.pageTable[page.vpn];
+                used |= entry.used;
+                entry.used = false;
+            }
+            if (!used) {
+                return ppn;
             }
         }
+    }
 
+    /**
+     * Load the content of the specified page into a physical page: from
+     * swap space if it was swapped out, from the file if it is mapped, and
+     * otherwise from the .coff file, or zeroes for the stack.
+     * @param vpn
+     * @param ppn
+     */
+    protected void allocatePage(int vpn, int ppn) {
+	    boolean readOnly = false;
+	    boolean dirty = false;
+	    TranslationEntry PTEntry = pageTable[vpn];
+
+        Integer spn = swapMap.remove(vpn);
+        Mapping map = findMapping(vpn);
+        if (spn != null) {
+            Lib.assertTrue(VMKernel.swapSpace.swapIn(spn, ppn) == pageSize);
+            // the page is no longer in swap space, so it must be written again
+            dirty = true;
+        }
+        else if (map != null) {
+            readMapped(map, vpn, ppn);
+        }
         // page is not in swap file, then allocate from coff
-        if (!allocated) {
+        else {
             readOnly = lazyLoading(vpn, ppn);
+            // other processes running the program can share a read only page
+            if (readOnly) {
+                UserKernel.memoryLock.acquire();
+                UserKernel.addTextPage(executableName, vpn, ppn);
+                UserKernel.memoryLock.release();
+            }
         }
+
         PTEntry.ppn = ppn;
         PTEntry.valid = true;
         PTEntry.readOnly = readOnly;
+        PTEntry.dirty = dirty;
+        PTEntry.used = true;
         VMKernel.invertedPageTable[ppn].vpn = vpn;
-        VMKernel.invertedPageTable[ppn].process = this;
+        VMKernel.invertedPageTable[ppn].processes.add(this);
     }
-    protected void handleEvict(int vpn, int ppn) {
-        int oldVPN = VMKernel.invertedPageTable[ppn].vpn;
-        TranslationEntry oldEntry = pageTable[oldVPN];
-
-        int inCoff = inCoff(vpn);
 
-        if (inCoff >= 0) {
-            boolean readOnly = (inCoff == 1);
+    /**
+     * Take a physical page away from the processes using it. A dirty page is
+     * written back to its file if it is mapped, and otherwise to swap space,
+     * where the processes sharing it share its place. A read only page of
+     * the program is dropped, to be loaded again when it is next used.
+     * @param ppn
+     */
+    protected void handleEvict(int ppn) {
+        VMKernel.MemoryPage page = VMKernel.invertedPageTable[ppn];
+        boolean dirty = false;
 
-            if (!readOnly && oldEntry.dirty) {
-                VMKernel.swapSpace.swapOut(ppn);
+        // only the current process can have the page in the TLB
+        for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
+            TranslationEntry TLBEntry = Machine.processor().readTLBEntry(i);
+            if (TLBEntry.valid && TLBEntry.ppn == ppn) {
+                dirty |= TLBEntry.dirty;
+                TLBEntry.valid = false;
+                Machine.processor().writeTLBEntry(i, TLBEntry);
             }
         }
-        else {
-            if (oldEntry.dirty) {
-                VMKernel.swapSpace.swapOut(ppn);
+
+        for (VMProcess process : page.processes) {
+            TranslationEntry oldEntry = process.pageTable[page.vpn];
+            dirty |= oldEntry.dirty;
+            oldEntry.valid = false;
+        }
+
+        // a read only page of the program is clean, and is forgotten by the
+        // cache of shared pages
+        if (page.processes.getFirst().inReadOnlySection(page.vpn)) {
+            UserKernel.memoryLock.acquire();
+            for (int i = 0; i < page.processes.size(); i++) {
+                UserKernel.releaseTextPage(ppn);
             }
+            UserKernel.memoryLock.release();
         }
-        oldEntry.valid = false;
-        VMKernel.invertedPageTable[ppn].vpn = vpn;
-        VMKernel.invertedPageTable[ppn].process = this;
 
-        for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
-            TranslationEntry TLBEntry = new TranslationEntry(Machine.processor().readTLBEntry(i));
-            if (TLBEntry.ppn == ppn) {
-                TLBEntry.valid = false;
-                pageTable[TLBEntry.vpn].valid = false;
+        if (dirty) {
+            // a mapped page is never shared, since maps are not inherited
+            VMProcess owner = page.processes.getFirst();
+            Mapping map = owner.findMapping(page.vpn);
+            if (map != null) {
+                owner.writeBack(map, page.vpn, ppn);
+            }
+            else {
+                int spn = VMKernel.swapSpace.swapOut(ppn);
+                Lib.assertTrue(spn != -1);
+                for (VMProcess process : page.processes) {
+                    process.swapMap.put(page.vpn, spn);
+                    if (process != owner) {
+                        VMKernel.swapSpace.share(spn);
+                    }
+                }
             }
-            Machine.processor().writeTLBEntry(i, TLBEntry);
         }
 
+        page.processes.clear();
     }
 
     /**
-     * Check if vpn is valid, that is, we can find corresponding section in .coff file
-     * And also check if section is read only
+     * Load a page from .coff file. A page that is in no section is part of
+     * the stack or the arguments, and starts out zeroed.
      * @param vpn
-     * @return
+     * @param ppn
+     * @return true if the page is read only
+     */
+    protected boolean lazyLoading(int vpn, int ppn) {
+	    for (int i = 0; i < coff.getNumSections(); i++) {
+	        CoffSection section = coff.getSection(i);
+
+	        if (vpn >= section.getFirstVPN() &&
+                    vpn < (section.getFirstVPN() + section.getLength())) {
+	            section.loadPage(vpn - section.getFirstVPN(), ppn);
+	            return section.isReadOnly();
+            }
+        }
+
+        Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+                (ppn + 1) * pageSize, (byte) 0);
+        return false;
+    }
+
+    /**
+     * Return true if the specified page is in a read only section of the
+     * .coff file.
      */
-    protected int inCoff(int vpn) {
-        boolean readOnly;
+    private boolean inReadOnlySection(int vpn) {
         for (int i = 0; i < coff.getNumSections(); i++) {
             CoffSection section = coff.getSection(i);
+
             if (vpn >= section.getFirstVPN() &&
                     vpn < (section.getFirstVPN() + section.getLength())) {
-                readOnly = section.isReadOnly();
-                return readOnly? 1: 0;
+                return section.isReadOnly();
             }
         }
-        return -1;
+        return false;
     }
-    protected boolean lazyLoading(int vpn, int ppn) {
-	    boolean readOnly = false;
-	    for (int i = 0; i < coff.getNumSections(); i++) {
-	        CoffSection section = coff.getSection(i);
 
-	        if (vpn >= section.getFirstVPN() &&
-                    vpn < (section.getFirstVPN() + section.getLength())) {
-	            readOnly = section.isReadOnly();
-	            section.loadPage(vpn - section.getFirstVPN(), ppn);
+    /**
+     * Read a mapped page from its file. Bytes past the end of the map or of
+     * the file are zero.
+     */
+    private void readMapped(Mapping map, int vpn, int ppn) {
+        byte[] memory = Machine.processor().getMemory();
+        int pageOffset = (vpn - map.firstVPN) * pageSize;
+        int length = Math.min(pageSize, map.length - pageOffset);
+
+        int read = map.file.read(map.offset + pageOffset, memory,
+                ppn * pageSize, length);
+        Arrays.fill(memory, ppn * pageSize + Math.max(read, 0),
+                (ppn + 1) * pageSize, (byte) 0);
+    }
+
+    /**
+     * Write a dirty mapped page back to its file, up to the end of the map.
+     */
+    private void writeBack(Mapping map, int vpn, int ppn) {
+        fileChanged(map.file);
+
+        int pageOffset = (vpn - map.firstVPN) * pageSize;
+        int length = Math.min(pageSize, map.length - pageOffset);
+
+        if (map.file.write(map.offset + pageOffset,
+                Machine.processor().getMemory(), ppn * pageSize, length) < length) {
+            Lib.debug(dbgVM, "\twrite back failed for vpn " + vpn);
+        }
+    }
+
+    /**
+     * Return the map containing the specified page, or null if there is none.
+     */
+    private Mapping findMapping(int vpn) {
+        if (vpn < numPages) {
+            return null;
+        }
+        for (Mapping map : mappings) {
+            if (map.contains(vpn)) {
+                return map;
             }
         }
-        return readOnly;
+        return null;
+    }
+
+    /**
+     * A region of a file mapped into the address space by mmap().
+     */
+    private static class Mapping {
+        Mapping(OpenFile file, int offset, int length, int firstVPN,
+                int numPages) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.firstVPN = firstVPN;
+            this.numPages = numPages;
+        }
+
+        boolean contains(int vpn) {
+            return vpn >= firstVPN && vpn < firstVPN + numPages;
+        }
+
+        OpenFile file;
+
+        int offset, length;
+
+        int firstVPN, numPages;
     }
 
+	private static final int syscallMmap = 10, syscallMunmap = 15;
+
 	private static final int pageSize = Processor.pageSize;
 
+	/** The pages of address space a process can use for file maps. */
+	private static final int maxMapPages = 1024;
+
 	private static final char dbgProcess = 'a';
 
 	private static final char dbgVM = 'v';
 
-	private static TranslationEntry[] pageTable;
-
 	private static int clock = 0;
 
+    // vpn ---> index of page in swap space
+    private HashMap<Integer, Integer> swapMap = new HashMap<>();
+
+    // the file maps of this process, in the order they were made
+    private LinkedList<Mapping> mappings = new LinkedList<>();
+
 }